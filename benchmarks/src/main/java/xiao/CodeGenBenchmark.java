@@ -0,0 +1,44 @@
+package xiao;
+
+import org.openjdk.jmh.annotations.*;
+import xiao.λ.CodeGen;
+import xiao.λ.Expr;
+
+import java.util.concurrent.TimeUnit;
+
+// 生成其他语言的代码
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodeGenBenchmark {
+    @Param({ "fact:5", "fizzbuzz:100", "size:1000", "string:10000" })
+    public String workload;
+
+    @Param({ "scheme", "json", "js", "py", "jsMin", "pyMin" })
+    public String target;
+
+    Expr expr;
+    CodeGen<String, Void> gen;
+
+    @Setup
+    public void setup() {
+        expr = Workloads.expanded(workload);
+        switch (target) {
+            case "scheme": gen = CodeGen.scheme; break;
+            case "json":   gen = CodeGen.json;   break;
+            case "js":     gen = CodeGen.js;     break;
+            case "py":     gen = CodeGen.py;     break;
+            case "jsMin":  gen = CodeGen.jsMin;  break;
+            case "pyMin":  gen = CodeGen.pyMin;  break;
+            default: throw new IllegalArgumentException(target);
+        }
+    }
+
+    @Benchmark
+    public String emit() {
+        return gen.visit(expr, null);
+    }
+}
@@ -0,0 +1,31 @@
+package xiao;
+
+import org.openjdk.jmh.annotations.*;
+import xiao.λ.Expr;
+import xiao.λ.Parser.Node;
+
+import java.util.concurrent.TimeUnit;
+
+// Compiler.compile1: 表层语言 -> pure lambda, 还没有消除 free variable
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DesugarBenchmark {
+    @Param({ "fact:5", "fizzbuzz:100", "size:10", "size:1000", "string:100", "string:10000" })
+    public String workload;
+
+    Node node;
+
+    @Setup
+    public void setup() {
+        node = λ.Parser.parse(Workloads.source(workload));
+    }
+
+    @Benchmark
+    public Expr desugar() {
+        return λ.Compiler.compile1(node);
+    }
+}
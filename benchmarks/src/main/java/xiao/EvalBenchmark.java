@@ -0,0 +1,39 @@
+package xiao;
+
+import org.openjdk.jmh.annotations.*;
+import xiao.λ.CodeGen;
+import xiao.λ.Env;
+import xiao.λ.Expr;
+import xiao.λ.UnChurchification;
+import xiao.λ.UnChurchification.F;
+
+import java.util.concurrent.TimeUnit;
+
+// 编译成 java lambda 求值, 再解码成 java 值; jets=false 是纯丘齐编码, jets=true 同 CodeGen.java
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvalBenchmark {
+    @Param({ "fact:5", "fact:10", "fizzbuzz:15", "fizzbuzz:100", "size:10", "size:1000", "string:100", "string:1000" })
+    public String workload;
+
+    @Param({ "false", "true" })
+    public boolean jets;
+
+    Expr expr;
+    CodeGen<F, Env<F>> gen;
+
+    @Setup
+    public void setup() {
+        expr = Workloads.expanded(workload);
+        gen = new UnChurchification.Compiler(jets);
+    }
+
+    @Benchmark
+    public Object eval() {
+        return Workloads.decode(workload, gen.visit(expr, null));
+    }
+}
@@ -0,0 +1,35 @@
+package xiao;
+
+import org.openjdk.jmh.annotations.*;
+import xiao.λ.Env;
+import xiao.λ.Expr;
+
+import java.util.concurrent.TimeUnit;
+
+import static xiao.λ.bootEnv;
+
+// Expander: 用 bootstrap 环境里的 primitive 替换掉 free variable
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExpandBenchmark {
+    @Param({ "fact:5", "fizzbuzz:100", "size:10", "size:1000", "string:100", "string:10000" })
+    public String workload;
+
+    Expr desugared;
+    Env<Expr> env;
+
+    @Setup
+    public void setup() {
+        desugared = Workloads.desugared(workload);
+        env = bootEnv();
+    }
+
+    @Benchmark
+    public Expr expand() {
+        return λ.Compiler.expander.visit(desugared, env);
+    }
+}
@@ -0,0 +1,29 @@
+package xiao;
+
+import org.openjdk.jmh.annotations.*;
+import xiao.λ.Parser.Node;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+    @Param({ "fact:5", "fizzbuzz:100", "size:10", "size:1000", "string:100", "string:10000" })
+    public String workload;
+
+    String src;
+
+    @Setup
+    public void setup() {
+        src = Workloads.source(workload);
+    }
+
+    @Benchmark
+    public Node parse() {
+        return λ.Parser.parse(src);
+    }
+}
@@ -0,0 +1,65 @@
+package xiao;
+
+import xiao.λ.Expr;
+import xiao.λ.UnChurchification.F;
+
+import static java.lang.String.format;
+import static xiao.λ.bootEnv;
+
+// Test/Bench 里的几个程序 (源码在 Bench, 通过 lambda-compiler 的 test-jar 引用), 参数写成 "名字:大小"
+// fact:n       (fact n)
+// fizzbuzz:n   1 到 n 的 fizzbuzz (n <= 100, 只处理两位数)
+// size:n       n 个元素的 list 求长度
+// string:n     n 个字符的字符串字面量
+final class Workloads {
+    static String source(String workload) {
+        String name = workload.substring(0, workload.indexOf(':'));
+        int n = Integer.parseInt(workload.substring(workload.indexOf(':') + 1));
+        switch (name) {
+            case "fact":
+                return format(Bench.FACT, n);
+            case "fizzbuzz":
+                return Bench.fizzbuzz(n);
+            case "size": {
+                StringBuilder lst = new StringBuilder();
+                for (int i = 0; i < n; i++) {
+                    lst.append("(cons ").append(i % 10).append(' ');
+                }
+                lst.append("(quote ())");
+                for (int i = 0; i < n; i++) {
+                    lst.append(')');
+                }
+                return format(Bench.SIZE, lst);
+            }
+            case "string": {
+                StringBuilder str = new StringBuilder("\"");
+                for (int i = 0; i < n; i++) {
+                    str.append((char) ('a' + i % 26));
+                }
+                return str.append('"').toString();
+            }
+            default:
+                throw new IllegalArgumentException(workload);
+        }
+    }
+
+    static Expr desugared(String workload) {
+        return λ.Compiler.compile1(λ.Parser.parse(source(workload)));
+    }
+
+    static Expr expanded(String workload) {
+        return λ.Compiler.expander.visit(desugared(workload), bootEnv());
+    }
+
+    // 求值结果转成 java 值
+    static Object decode(String workload, F f) {
+        switch (workload.substring(0, workload.indexOf(':'))) {
+            case "fizzbuzz":
+                return f.list(F::string);
+            case "string":
+                return f.string();
+            default:
+                return f.nat();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package xiao;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import xiao.λ.UnChurchification.Metrics;
+
+/**
+ * Metrics.evaluate 的 JFR 事件, 每次求值一个 <br>
+ * 要 jdk.jfr, JDK 11 以前 pom 的 no-jfr profile 不编译这个文件; Metrics 反射加载, 没有就不发事件
+ *
+ * @author chuxiaofeng
+ */
+final class JfrEvaluation implements Metrics.Listener {
+
+    @Name("xiao.lambda.Evaluation")
+    @Label("λ Evaluation")
+    @Category("λ")
+    static final class Evaluation extends Event {
+        @Label("Applications") long applications;
+        @Label("Closures") long closures;
+        @Label("Env Frames") long frames;
+        @Label("Lookups") long lookups;
+        @Label("Lookup Hops") long hops;
+        @Label("Peak Depth") int peakDepth;
+    }
+
+    @Override public Object start() {
+        Evaluation e = new Evaluation();
+        e.begin();
+        return e;
+    }
+
+    @Override public void finish(Object token, Metrics m) {
+        Evaluation e = (Evaluation) token;
+        e.end();
+        if (e.shouldCommit()) {
+            e.applications = m.applications;
+            e.closures = m.closures;
+            e.frames = m.frames;
+            e.lookups = m.lookups;
+            e.hops = m.hops;
+            e.peakDepth = m.peakDepth;
+            e.commit();
+        }
+    }
+}
@@ -1,9 +1,44 @@
 package xiao;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.lang.Character.isDigit;
 import static java.lang.Character.isWhitespace;
@@ -52,8 +87,27 @@ public interface λ {
         return bootEnv(Compiler.expander);
     }
 
-    // 用 visitor 构建一个 bootstrap 环境
+    // 共享的 backend (Env.cached) 的 bootstrap 环境只构建一次, 冻结后共享; 临时 new 出来的 visitor 每次现建, 由调用方持有
+    // 这里返回它的子作用域, 可以继续 put
+    @SuppressWarnings("unchecked")
+    // 不在 computeIfAbsent 里构建: 建 CodeGen.java 的环境会求值到 Jets, Jets.Table 初始化又要 bootEnv(), 嵌套 computeIfAbsent 会抛 Recursive update
+    // 先建好再 putIfAbsent, 并发时可能多建一次, 只留先放进去的那个
     static <T> Env<T> bootEnv(Visitor<T, Env<T>> vis) {
+        Env<T> boot = (Env<T>) Env.boot.get(vis);
+        if (boot == null) {
+            boot = buildBootEnv(vis).freeze();
+            if (Env.cached(vis)) {
+                Env<T> prev = (Env<T>) Env.boot.putIfAbsent(vis, boot);
+                if (prev != null) {
+                    boot = prev;
+                }
+            }
+        }
+        return new Env<>(boot);
+    }
+
+    // 用 visitor 构建一个 bootstrap 环境
+    static <T> Env<T> buildBootEnv(Visitor<T, Env<T>> vis) {
         Env<T> env = new Env<>(null);
         primitives().forEach((n, s) -> env.put(symOf(n), vis.visit(compile1(parse(s)), env)));
         return env;
@@ -61,16 +115,695 @@ public interface λ {
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-    // 试验另一种方式: 不用环境, 把 runtime 放到顶层的 let 里头, 理论可行, 编译到 js 一些 sym 名称不是合法的变量
-    // 而环境替换的方式, 会全部替换掉, 那些 sym 定义的名字都会消失
-    /*
-    static <Target, Ctx> Target compileWithGlobalLet(String code, CodeGen<Target, Ctx> gen) {
-        List<Node> pairs = new ArrayList<>();
-        primitives().forEach((n, s) -> pairs.add(tupleOf(nameOf(n), parse(s))));
-        Tuple globalLet = tupleOf(Compiler.let, tupleOf(pairs), parse(code));
-        return gen.visit(Compiler.compile(globalLet, null), null);
+    // 另一种方式: 不用环境替换, 用到的 runtime 放到顶层的 let 里头, 每个 primitive 只出现一次
+    // 环境替换的方式会全部替换掉, 那些 sym 定义的名字都会消失; 这里名字保留, 编译到 js/py 时由 CodeGen.mangle 改成合法的变量名
+    static <Target, Ctx> Target compileWithPrelude(String code, CodeGen<Target, Ctx> gen) {
+        return compileWithPrelude(code, gen, null);
+    }
+
+    static <Target, Ctx> Target compileWithPrelude(String code, Visitor<Target, Ctx> to, Ctx toEnv) {
+        return to.visit(Compiler.Prelude.link(compile1(parse(code))), toEnv);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // 批量编译: 每个程序一个任务, 共用冻结的 bootstrap 环境 (各自只建子作用域), 结果按输入顺序
+    // 单个程序出错只记在它自己的 Compiled 里, 不影响其他程序
+    static <Target, Ctx> List<Compiled<Target>> compileAll(Collection<String> codes, CodeGen<Target, Ctx> gen) {
+        return compileAll(codes, gen, ForkJoinPool.commonPool());
+    }
+
+    static <Target, Ctx> List<Compiled<Target>> compileAll(Collection<String> codes, CodeGen<Target, Ctx> gen,
+                                                           ForkJoinPool pool) {
+        String[] src = codes.toArray(new String[0]);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Compiled<Target>[] out = new Compiled[src.length];
+        // 先在当前线程把 bootstrap 环境建好, 任务里只读
+        bootEnv();
+        int grain = Math.max(1, src.length / (pool.getParallelism() * 4));
+        pool.invoke(new Batch(0, src.length, grain, i -> out[i] = Compiled.of(src[i], () -> compile(src[i], gen))));
+        return Arrays.asList(out);
+    }
+
+    // 一个程序的编译结果, value 和 error 只有一个非 null
+    final class Compiled<T> {
+        final String code;
+        final /*@Nullable*/ T value;
+        final /*@Nullable*/ Throwable error;
+
+        Compiled(String code, /*@Nullable*/ T value, /*@Nullable*/ Throwable error) {
+            this.code = code;
+            this.value = value;
+            this.error = error;
+        }
+
+        static <T> Compiled<T> of(String code, Supplier<T> compile) {
+            try {
+                return new Compiled<>(code, compile.get(), null);
+            } catch (RuntimeException | StackOverflowError e) {
+                return new Compiled<>(code, null, e);
+            }
+        }
+
+        boolean ok() { return error == null; }
+
+        // 成功返回结果, 失败把原来的异常包一层抛出
+        T get() {
+            if (error != null) {
+                throw new RuntimeException(error.getMessage(), error);
+            }
+            return value;
+        }
+
+        @Override public String toString() { return ok() ? String.valueOf(value) : "error: " + error.getMessage(); }
+    }
+
+    // 下标区间对半拆分, 不超过 grain 个时顺序执行
+    final class Batch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final int from, to, grain;
+        final IntConsumer task;
+
+        Batch(int from, int to, int grain, IntConsumer task) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.task = task;
+        }
+
+        @Override protected void compute() {
+            if (to - from <= grain) {
+                for (int i = from; i < to; i++) {
+                    task.accept(i);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Batch(from, mid, grain, task), new Batch(mid, to, grain, task));
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // 编译缓存: key 是 (源码 + runtime 指纹) 的 sha-256 和目标 CodeGen, 同一份源码换 target 时复用展开好的 Expr
+    // 内存里按条数 LRU 淘汰; 并发的同 key miss 只编译一次, 其他线程等它的结果
+    // 可选的磁盘层只存字符串输出 (scheme/json/js/py/jsMin/pyMin), 放在 dir/指纹/ 下, 重启后还在
+    // 失效: primitives()/Primitives/Names 或 VERSION 变了指纹就变, 旧目录不再命中, purge() 删掉
+    final class Cache {
+        // CodeGen 的输出格式变了就加一
+        final static int VERSION = 1;
+        final static String FINGERPRINT = fingerprint();
+        // 指纹目录里的标记文件, purge 只删有它的目录, dir 下别人的东西不动
+        final static String MARKER = ".lambda-cache";
+
+        final static Map<CodeGen<?, ?>, String> NAMES = new IdentityHashMap<>();
+        static {
+            NAMES.put(CodeGen.scheme, "scheme");
+            NAMES.put(CodeGen.json, "json");
+            NAMES.put(CodeGen.js, "js");
+            NAMES.put(CodeGen.py, "py");
+            NAMES.put(CodeGen.jsMin, "js.min");
+            NAMES.put(CodeGen.pyMin, "py.min");
+        }
+
+        final int capacity;
+        final /*@Nullable*/ Path dir;
+        final LinkedHashMap<List<Object>, Object> lru;
+        final ConcurrentHashMap<List<Object>, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+        final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder(),
+                waits = new LongAdder(), reads = new LongAdder(), writes = new LongAdder();
+
+        Cache(int capacity) {
+            this(capacity, null);
+        }
+
+        Cache(int capacity, /*@Nullable*/ Path dir) {
+            this.capacity = capacity;
+            this.dir = dir == null ? null : dir.resolve(FINGERPRINT);
+            this.lru = new LinkedHashMap<List<Object>, Object>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+                    if (size() > Cache.this.capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        Expr compile(String code) {
+            return compile(code, CodeGen.expr);
+        }
+
+        @SuppressWarnings("unchecked")
+        <Target, Ctx> Target compile(String code, CodeGen<Target, Ctx> gen) {
+            String hash = hash(code);
+            if (gen == CodeGen.expr) {
+                return (Target) get(Arrays.asList(hash, gen), () -> λ.compile(code));
+            }
+            return (Target) get(Arrays.asList(hash, gen), () -> {
+                String name = NAMES.get(gen);
+                if (dir == null || name == null) {
+                    return gen.visit(compile(code), null);
+                }
+                return disk(dir.resolve(hash + "." + name), () -> (String) gen.visit(compile(code), null));
+            });
+        }
+
+        Object get(List<Object> key, Supplier<Object> load) {
+            Object v;
+            synchronized (lru) { v = lru.get(key); }
+            if (v != null) {
+                hits.increment();
+                return v;
+            }
+            CompletableFuture<Object> mine = new CompletableFuture<>();
+            CompletableFuture<Object> other = loading.putIfAbsent(key, mine);
+            if (other != null) {
+                waits.increment();
+                return join(other);
+            }
+            try {
+                // 抢到之前别人可能刚好算完
+                synchronized (lru) { v = lru.get(key); }
+                if (v == null) {
+                    misses.increment();
+                    v = load.get();
+                    synchronized (lru) { lru.put(key, v); }
+                } else {
+                    hits.increment();
+                }
+                mine.complete(v);
+                return v;
+            } catch (RuntimeException | Error e) {
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                loading.remove(key);
+            }
+        }
+
+        static Object join(CompletableFuture<Object> f) {
+            try {
+                return f.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw e;
+            }
+        }
+
+        // 先写临时文件再改名, 读到的要么没有要么完整
+        String disk(Path file, Supplier<String> emit) {
+            try {
+                if (Files.exists(file)) {
+                    reads.increment();
+                    return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                }
+                String out = emit.get();
+                Files.createDirectories(file.getParent());
+                Path marker = file.getParent().resolve(MARKER);
+                if (!Files.exists(marker)) {
+                    Files.write(marker, FINGERPRINT.getBytes(StandardCharsets.UTF_8));
+                }
+                Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+                Files.write(tmp, out.getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                writes.increment();
+                return out;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // 只清内存
+        void invalidate() {
+            synchronized (lru) { lru.clear(); }
+        }
+
+        // 删掉磁盘上其他指纹的目录, 返回删掉的个数
+        // 只认缓存自己建的: 名字是 16 位 hex 的指纹, 里头有 MARKER
+        int purge() {
+            if (dir == null || !Files.isDirectory(dir.getParent())) {
+                return 0;
+            }
+            int n = 0;
+            try (Stream<Path> dirs = Files.list(dir.getParent())) {
+                for (Path old : (Iterable<Path>) dirs::iterator) {
+                    if (!old.equals(dir) && old.getFileName().toString().matches("[0-9a-f]{16}") && Files.isRegularFile(old.resolve(MARKER))) {
+                        try (Stream<Path> files = Files.walk(old)) {
+                            for (Path it : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                                Files.delete(it);
+                            }
+                        }
+                        n++;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return n;
+        }
+
+        int size() {
+            synchronized (lru) { return lru.size(); }
+        }
+
+        Stats stats() {
+            return new Stats(hits.sum(), misses.sum(), evictions.sum(), waits.sum(), reads.sum(), writes.sum());
+        }
+
+        // hits/misses 是内存层, waits 是等别人编译的次数, reads/writes 是磁盘层
+        static final class Stats {
+            final long hits, misses, evictions, waits, reads, writes;
+            Stats(long hits, long misses, long evictions, long waits, long reads, long writes) {
+                this.hits = hits;
+                this.misses = misses;
+                this.evictions = evictions;
+                this.waits = waits;
+                this.reads = reads;
+                this.writes = writes;
+            }
+            @Override public String toString() {
+                return "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                        + ", waits=" + waits + ", reads=" + reads + ", writes=" + writes;
+            }
+        }
+
+        static String hash(String code) {
+            return hex(sha256(FINGERPRINT + "\0" + code));
+        }
+
+        // 影响编译结果的只有 runtime 定义和关键字, 连同 VERSION 一起摘要
+        static String fingerprint() {
+            StringBuilder buf = new StringBuilder().append(VERSION).append('\0');
+            primitives().forEach((n, s) -> buf.append(n).append('=').append(s).append('\0'));
+            for (Class<?> c : Arrays.asList(Primitives.class, Names.class)) {
+                Arrays.stream(c.getFields())
+                        .sorted(Comparator.comparing(java.lang.reflect.Field::getName))
+                        .forEach(it -> {
+                            try {
+                                buf.append(it.getName()).append('=').append(it.get(null)).append('\0');
+                            } catch (IllegalAccessException e) {
+                                throw new RuntimeException(e);
+                            }
+                        });
+            }
+            return hex(sha256(buf.toString())).substring(0, 16);
+        }
+
+        static byte[] sha256(String s) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        static String hex(byte[] bytes) {
+            StringBuilder buf = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                buf.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return buf.toString();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // closed Expr 的二进制格式, 前序的 tag 流, 变量是 varint 的 de Bruijn index, 不存名字
+    // 头: "XLB" 版本 + 8 字节 runtime 指纹 (同 Cache.FINGERPRINT), 指纹不同拒绝读
+    // primitive 存成 primitives() 里的序号, 读回来是 bootstrap 环境里同一个 Expr, jets 照样认得出
+    // 丘齐数只存 n; 出现不止一次的 closed 子项第一次前面加 SHARE, 之后用 REF 按完成顺序引用
+    // 读的时候直接从 (mmap 的) ByteBuffer 构造 Expr 或者 Indexed.Code, 不经过字符串和 Parser
+    final class Binary {
+        final static byte APP = 0, LAM = 1, LAM0 = 2, SHARE = 3, REF = 4, PRIM = 5, NUM = 6, VAR = 7;
+        // 8 + k: index k < 248 的变量
+        final static int VAR_SMALL = 8, SMALL = 256 - VAR_SMALL;
+        final static byte[] MAGIC = { 'X', 'L', 'B', 1 };
+
+        static byte[] encode(Expr expr) {
+            return new Writer().write(expr);
+        }
+
+        static void write(Expr expr, Path file) {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buf = ByteBuffer.wrap(encode(expr));
+                while (buf.hasRemaining()) {
+                    ch.write(buf);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        static Expr decode(ByteBuffer buf) {
+            return new ExprReader(buf).read();
+        }
+
+        static Expr read(Path file) {
+            return decode(map(file));
+        }
+
+        // 直接读成 javaIndexed/cek 用的 Code
+        static UnChurchification.Indexed.Code code(ByteBuffer buf, boolean jets) {
+            return new CodeReader(buf, jets).read();
+        }
+
+        static F load(Path file) {
+            return code(map(file), true).eval(null, null);
+        }
+
+        static ByteBuffer map(Path file) {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        static List<Expr> prims() {
+            Env<Expr> boot = bootEnv();
+            List<Expr> prims = new ArrayList<>();
+            primitives().keySet().forEach(n -> prims.add(boot.lookup(symOf(n))));
+            return prims;
+        }
+
+        static byte[] fingerprint() {
+            byte[] fp = new byte[8];
+            for (int i = 0; i < fp.length; i++) {
+                fp[i] = (byte) Integer.parseInt(Cache.FINGERPRINT.substring(i * 2, i * 2 + 2), 16);
+            }
+            return fp;
+        }
+
+        static final class Writer {
+            byte[] buf = new byte[256];
+            int size;
+            final Map<Expr, Integer> prims = new IdentityHashMap<>();
+            final Map<Expr, Integer> ids = new IdentityHashMap<>();
+            Set<Expr> repeated;
+
+            Writer() {
+                List<Expr> ps = prims();
+                for (int i = 0; i < ps.size(); i++) {
+                    prims.putIfAbsent(ps.get(i), i);
+                }
+            }
+
+            byte[] write(Expr expr) {
+                for (byte b : MAGIC) put(b);
+                for (byte b : fingerprint()) put(b);
+                repeated = repeated(expr);
+
+                Map<Sym, Deque<Integer>> levels = new HashMap<>();
+                List<Boolean> used = new ArrayList<>();
+                used.add(false);
+                int depth = 0;
+                // { expr, null }: 输出节点; { abs, 位置 }: λ 结束, 回填 LAM/LAM0; { expr, SHARE }: 共享子项结束, 分配 id
+                Deque<Object[]> todo = new ArrayDeque<>();
+                todo.push(new Object[] { expr, null });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    Expr e = (Expr) t[0];
+                    if (t[1] instanceof Integer) {
+                        levels.get(((Abs) e).param).pop();
+                        buf[(int) t[1]] = used.get(depth) ? LAM : LAM0;
+                        used.set(depth--, false);
+                        continue;
+                    } else if (t[1] != null) {
+                        ids.put(e, ids.size());
+                        continue;
+                    }
+                    Integer prim = prims.get(e), id = ids.get(e);
+                    int n = e instanceof Abs ? UnChurchification.Jets.numeral((Abs) e) : -1;
+                    if (prim != null) {
+                        put(PRIM);
+                        varint(prim);
+                    } else if (id != null) {
+                        put(REF);
+                        varint(id);
+                    } else if (n >= 0) {
+                        put(NUM);
+                        varint(n);
+                    } else if (e instanceof Sym) {
+                        Deque<Integer> level = levels.get(e);
+                        if (level == null || level.isEmpty()) {
+                            throw new RuntimeException(e + " not found");
+                        }
+                        int k = depth - level.peek();
+                        used.set(level.peek(), true);
+                        if (k < SMALL) {
+                            put((byte) (VAR_SMALL + k));
+                        } else {
+                            put(VAR);
+                            varint(k);
+                        }
+                    } else {
+                        if (repeated.contains(e)) {
+                            put(SHARE);
+                            todo.push(new Object[] { e, SHARE });
+                        }
+                        if (e instanceof App) {
+                            put(APP);
+                            todo.push(new Object[] { ((App) e).arg, null });
+                            todo.push(new Object[] { ((App) e).abs, null });
+                        } else {
+                            Abs abs = (Abs) e;
+                            todo.push(new Object[] { abs, size });
+                            put(LAM);
+                            if (++depth == used.size()) {
+                                used.add(false);
+                            }
+                            levels.computeIfAbsent(abs.param, k -> new ArrayDeque<>()).push(depth);
+                            todo.push(new Object[] { abs.body, null });
+                        }
+                    }
+                }
+                return Arrays.copyOf(buf, size);
+            }
+
+            // 出现不止一次的 closed App/Abs, 算法同 Prelude.free; primitive 和丘齐数另有 tag, 不往下走
+            Set<Expr> repeated(Expr expr) {
+                Set<Expr> repeated = Collections.newSetFromMap(new IdentityHashMap<>());
+                Set<Expr> closed = Collections.newSetFromMap(new IdentityHashMap<>());
+                Map<Sym, Deque<Integer>> levels = new HashMap<>();
+                Deque<Object[]> todo = new ArrayDeque<>();
+                Deque<Integer> done = new ArrayDeque<>();
+                todo.push(new Object[] { expr, 0, false });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    Expr e = (Expr) t[0];
+                    int depth = (int) t[1];
+                    if ((boolean) t[2]) {
+                        int escape;
+                        if (e instanceof App) {
+                            escape = Math.max(done.pop(), done.pop());
+                        } else {
+                            levels.get(((Abs) e).param).pop();
+                            int body = done.pop();
+                            escape = body == Integer.MAX_VALUE ? body : Math.max(body - 1, 0);
+                        }
+                        if (escape == 0) {
+                            closed.add(e);
+                        }
+                        done.push(escape);
+                    } else if (closed.contains(e)) {
+                        repeated.add(e);
+                        done.push(0);
+                    } else if (prims.containsKey(e) || e instanceof Abs && UnChurchification.Jets.numeral((Abs) e) >= 0) {
+                        done.push(0);
+                    } else if (e instanceof Sym) {
+                        Deque<Integer> level = levels.get(e);
+                        done.push(level == null || level.isEmpty() ? Integer.MAX_VALUE : depth - level.peek() + 1);
+                    } else if (e instanceof App) {
+                        todo.push(new Object[] { e, depth, true });
+                        todo.push(new Object[] { ((App) e).arg, depth, false });
+                        todo.push(new Object[] { ((App) e).abs, depth, false });
+                    } else {
+                        Abs abs = (Abs) e;
+                        levels.computeIfAbsent(abs.param, k -> new ArrayDeque<>()).push(depth + 1);
+                        todo.push(new Object[] { e, depth, true });
+                        todo.push(new Object[] { abs.body, depth + 1, false });
+                    }
+                }
+                return repeated;
+            }
+
+            void put(byte b) {
+                if (size == buf.length) {
+                    buf = Arrays.copyOf(buf, size * 2);
+                }
+                buf[size++] = b;
+            }
+
+            void varint(int n) {
+                while ((n & ~0x7F) != 0) {
+                    put((byte) ((n & 0x7F) | 0x80));
+                    n >>>= 7;
+                }
+                put((byte) n);
+            }
+        }
+
+        // 前序 tag 流移进归约: 内部节点压栈, 叶子出来后把凑齐了的节点逐个弹出构造
+        abstract static class Reader<T> {
+            final ByteBuffer buf;
+            final List<T> shared = new ArrayList<>();
+            // 参数名按所在层数取, 同一条路径上不会重名; closed 子项挪到别的深度也不会被捕获
+            final List<Sym> names = new ArrayList<>();
+            int depth;
+
+            Reader(ByteBuffer buf) {
+                this.buf = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+                for (byte b : MAGIC) {
+                    if (this.buf.get() != b) {
+                        throw new RuntimeException("not a λ binary");
+                    }
+                }
+                for (byte b : fingerprint()) {
+                    if (this.buf.get() != b) {
+                        throw new RuntimeException("λ binary built against other primitives, fingerprint " + Cache.FINGERPRINT + " expected");
+                    }
+                }
+                names.add(null);
+            }
+
+            void enter(int level, boolean bound) { }
+            abstract T var(int k);
+            abstract T prim(int i);
+            abstract T num(int n);
+            abstract T app(T abs, T arg);
+            abstract T abs(boolean bound, T body);
+
+            Sym name(int level) {
+                while (names.size() <= level) {
+                    names.add(symOf("x" + names.size()));
+                }
+                return names.get(level);
+            }
+
+            T read() {
+                // APP: 还缺两个子节点 { APP, null }, 还缺参数 { APP, abs }; LAM/LAM0: { tag }; SHARE: { SHARE }
+                Deque<Object[]> frames = new ArrayDeque<>();
+                while (true) {
+                    byte tag = buf.get();
+                    T e;
+                    switch (tag) {
+                        case APP: frames.push(new Object[] { APP, null }); continue;
+                        case LAM:
+                        case LAM0: enter(++depth, tag == LAM); frames.push(new Object[] { tag }); continue;
+                        case SHARE: frames.push(new Object[] { SHARE }); continue;
+                        case REF: e = shared.get(varint()); break;
+                        case PRIM: e = prim(varint()); break;
+                        case NUM: e = num(varint()); break;
+                        case VAR: e = var(varint()); break;
+                        default: e = var((tag & 0xFF) - VAR_SMALL);
+                    }
+                    while (true) {
+                        if (frames.isEmpty()) {
+                            if (buf.hasRemaining()) {
+                                throw new RuntimeException("trailing bytes in λ binary");
+                            }
+                            return e;
+                        }
+                        Object[] top = frames.peek();
+                        if ((byte) top[0] == APP) {
+                            if (top[1] == null) {
+                                // 函数位置完了, 去读参数
+                                top[1] = e;
+                                break;
+                            }
+                            frames.pop();
+                            @SuppressWarnings("unchecked") T abs = (T) top[1];
+                            e = app(abs, e);
+                        } else if ((byte) top[0] == SHARE) {
+                            frames.pop();
+                            shared.add(e);
+                        } else {
+                            frames.pop();
+                            e = abs((byte) top[0] == LAM, e);
+                            depth--;
+                        }
+                    }
+                }
+            }
+
+            int varint() {
+                int n = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = buf.get();
+                    n |= (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        return n;
+                    }
+                }
+            }
+        }
+
+        static final class ExprReader extends Reader<Expr> {
+            final List<Expr> prims = prims();
+            final Map<Integer, Expr> numerals = new HashMap<>();
+
+            ExprReader(ByteBuffer buf) { super(buf); }
+
+            @Override Expr var(int k) { return name(depth - k); }
+            @Override Expr prim(int i) { return prims.get(i); }
+            @Override Expr num(int n) { return numerals.computeIfAbsent(n, Compiler::churchNumeral); }
+            @Override Expr app(Expr abs, Expr arg) { return new App(abs, arg); }
+            @Override Expr abs(boolean bound, Expr body) { return new Abs(name(depth), body); }
+        }
+
+        // Indexed 的 index 只数参数被引用的 λ, LAM/LAM0 正好记着这个
+        static final class CodeReader extends Reader<UnChurchification.Indexed.Code> {
+            final boolean jets;
+            final List<Expr> prims = prims();
+            final Map<Integer, UnChurchification.Indexed.Code> consts = new HashMap<>();
+            final BitSet unbound = new BitSet();
+
+            CodeReader(ByteBuffer buf, boolean jets) {
+                super(buf);
+                this.jets = jets;
+            }
+
+            @Override void enter(int level, boolean bound) { unbound.set(level, !bound); }
+
+            @Override UnChurchification.Indexed.Code var(int k) {
+                int index = 0;
+                for (int level = depth; level > depth - k; level--) {
+                    if (!unbound.get(level)) index++;
+                }
+                return new UnChurchification.Indexed.Var(name(depth - k), index);
+            }
+            @Override UnChurchification.Indexed.Code prim(int i) {
+                return consts.computeIfAbsent(i, it -> {
+                    Expr e = prims.get(it);
+                    F jet = jets ? UnChurchification.Jets.of(e, UnChurchification.Jets.Backend.INDEXED) : null;
+                    return jet != null ? new UnChurchification.Indexed.Const(jet) : UnChurchification.Indexed.resolve(e, jets);
+                });
+            }
+            @Override UnChurchification.Indexed.Code num(int n) {
+                if (jets) {
+                    return new UnChurchification.Indexed.Const(UnChurchification.Jets.Num.of(n));
+                }
+                // (λ (f) (λ (z) (f ... (f z)))), z 的 index 是 0, f 是 1; n 为 0 时 f 不占 index
+                UnChurchification.Indexed.Code body = new UnChurchification.Indexed.Var(symOf("z"), 0);
+                for (int i = 0; i < n; i++) {
+                    body = new UnChurchification.Indexed.Ap(new UnChurchification.Indexed.Var(symOf("f"), 1), body);
+                }
+                return new UnChurchification.Indexed.Lam(symOf("f"), n > 0,
+                        new UnChurchification.Indexed.Lam(symOf("z"), true, body));
+            }
+            @Override UnChurchification.Indexed.Code app(UnChurchification.Indexed.Code abs, UnChurchification.Indexed.Code arg) {
+                return new UnChurchification.Indexed.Ap(abs, arg);
+            }
+            @Override UnChurchification.Indexed.Code abs(boolean bound, UnChurchification.Indexed.Code body) {
+                return new UnChurchification.Indexed.Lam(name(depth), bound, body);
+            }
+        }
     }
-    */
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     /* ----------------------- AST ------------------------ */
@@ -99,8 +832,53 @@ public interface λ {
             @Override public String toString() { return "(" + LAMBDA + " (" + param + ") " + body + ")"; }
         }
 
-        Map<String, Sym> symCache = new HashMap<>();
-        static Sym symOf(String name) { return symCache.computeIfAbsent(name, t -> new Sym(name)); }
+        SymTable symCache = new SymTable();
+        static Sym symOf(String name) { return symCache.intern(name); }
+
+        // Sym 驻留表, 多线程并发编译共用, 无锁读
+        // 弱引用持有 Sym, 没有 AST/Env 再引用的名字可以被 GC 回收, 同名 Sym 在存活期间保持唯一 (Env 按 identity 取值)
+        final class SymTable {
+            final ConcurrentHashMap<String, Ref> table = new ConcurrentHashMap<>();
+            final ReferenceQueue<Sym> queue = new ReferenceQueue<>();
+
+            static final class Ref extends WeakReference<Sym> {
+                final String name;
+                Ref(Sym sym, ReferenceQueue<Sym> queue) {
+                    super(sym, queue);
+                    this.name = sym.name;
+                }
+            }
+
+            Sym intern(String name) {
+                expunge();
+                for (;;) {
+                    Ref ref = table.get(name);
+                    Sym sym = ref == null ? null : ref.get();
+                    if (sym != null) {
+                        return sym;
+                    }
+                    sym = new Sym(name);
+                    Ref fresh = new Ref(sym, queue);
+                    // 没抢到说明别的线程刚放进去一个, 重读
+                    if (ref == null ? table.putIfAbsent(name, fresh) == null : table.replace(name, ref, fresh)) {
+                        return sym;
+                    }
+                }
+            }
+
+            // 清理已回收的条目, 只删自己那个 ref, 不误删同名的新条目
+            void expunge() {
+                Ref ref;
+                while ((ref = (Ref) queue.poll()) != null) {
+                    table.remove(ref.name, ref);
+                }
+            }
+
+            int size() {
+                expunge();
+                return table.size();
+            }
+        }
     }
 
     interface Visitor<V, C> {
@@ -119,31 +897,57 @@ public interface λ {
     /* ----------------------- Env ---------------------- */
     @SuppressWarnings("MapOrSetKeyShouldOverrideHashCodeEquals")
     class Env<V> {
-        final Map<Sym, V> env = new LinkedHashMap<>();
+        // visitor -> 冻结的 bootstrap 环境, 只有 cached 的几个, 不会随着 new 出来的 visitor 增长
+        final static Map<Visitor<?, ?>, Env<?>> boot = new ConcurrentHashMap<>();
+        // 共享的 backend 在定义的地方用 shared 登记, 临时 new 出来的 visitor 不登记
+        final static Set<Visitor<?, ?>> shared = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        static <T extends Visitor<?, ?>> T shared(T vis) {
+            shared.add(vis);
+            return vis;
+        }
+        static boolean cached(Visitor<?, ?> vis) {
+            return shared.contains(vis);
+        }
+
+        final Map<Sym, V> env;
         final /*@Nullable*/ Env<V> parent;
         Env(/*@Nullable*/ Env<V> parent) {
+            this(new LinkedHashMap<>(), parent);
+        }
+        private Env(Map<Sym, V> env, /*@Nullable*/ Env<V> parent) {
+            this.env = env;
             this.parent = parent;
         }
+        // 不可变快照, 只读可以多线程共享, put 会抛 UnsupportedOperationException
+        Env<V> freeze() {
+            return new Env<>(Collections.unmodifiableMap(new LinkedHashMap<>(env)), parent == null ? null : parent.freeze());
+        }
         // define
         void put(Sym var, V val) {
             assert !env.containsKey(var); // redefine
             env.put(var, val);
         }
         V lookup(Sym sym) {
-            V val = env.get(sym);
-            if (val != null) {
-                return val;
-            } else if (parent != null) {
-                return parent.lookup(sym);
-            } else {
+            V val = find(sym);
+            if (val == null) {
                 throw new RuntimeException(sym + " not found");
             }
+            return val;
+        }
+        /*@Nullable*/ V find(Sym sym) {
+            for (Env<V> e = this; e != null; e = e.parent) {
+                V val = e.env.get(sym);
+                if (val != null) {
+                    return val;
+                }
+            }
+            return null;
         }
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     /* ---------------------- Parser ------------------------ */
-    class Parser {
+    class Parser implements Iterator<Node> {
 
         interface Node {
             class Delimiter implements Node {
@@ -202,144 +1006,829 @@ public interface λ {
             return nodes.get(0);
         }
 
-        final static String LINE_COMMENT = ";";
+        // mmap 整个文件按块解码, 文件不能超过 2G
+        public static Parser parse(Path file) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                return new Parser(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()), StandardCharsets.UTF_8);
+            }
+        }
+
+        final static char LINE_COMMENT = ';';
         final static char TUPLE_BEGIN = '(';
         final static char TUPLE_END = ')';
 
-        final String input;
-        int offset = 0;
+        // 输入统一成 CharBuffer (读模式), Reader 和 ByteBuffer 的输入用完一块再填一块
+        final CharBuffer buf;
+        final /*@Nullable*/ Reader reader;
+        final /*@Nullable*/ ByteBuffer bytes;
+        final /*@Nullable*/ CharsetDecoder decoder;
+        boolean eof;
+        // 上一个读掉的字符, 字符串的 \" 规则要用
+        char prev;
+        /*@Nullable*/ Node lookahead;
 
         public Parser(String input) {
-            this.input = input;
+            this(CharBuffer.wrap(input));
+        }
+
+        public Parser(CharBuffer input) {
+            this(input.duplicate(), null, null, null);
+            eof = true;
+        }
+
+        public Parser(Reader reader) {
+            this(emptyBuffer(), reader, null, null);
+        }
+
+        public Parser(ByteBuffer bytes, Charset charset) {
+            this(emptyBuffer(), null, bytes.duplicate(), charset.newDecoder());
+        }
+
+        private Parser(CharBuffer buf, /*@Nullable*/ Reader reader, /*@Nullable*/ ByteBuffer bytes, /*@Nullable*/ CharsetDecoder decoder) {
+            this.buf = buf;
+            this.reader = reader;
+            this.bytes = bytes;
+            this.decoder = decoder;
         }
 
         public List<Node> parse() {
             List<Node> elements = new ArrayList<>();
-            Node s = nextSexp();
-            while (s != null) {
-                elements.add(s);
-                s = nextSexp();
+            while (hasNext()) {
+                elements.add(next());
             }
             return elements;
         }
 
-        Node nextSexp() { return nextNode(0); }
+        // 逐个返回顶层的 form, 读到哪解析到哪
+        @Override public boolean hasNext() {
+            if (lookahead == null) {
+                lookahead = nextSexp();
+            }
+            return lookahead != null;
+        }
 
-        /*@Nullable*/ Node nextNode(int depth) {
-            Node begin = nextToken();
-            if (begin == null) {
-                return null;
+        @Override public Node next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            Node n = lookahead;
+            lookahead = null;
+            return n;
+        }
 
-            if (depth == 0 && isClose(begin)) {
-                throw new RuntimeException("不匹配: " + begin);
-            } else if (isOpen(begin)) {
-                List<Node> elements = new ArrayList<>();
-                Node iter = nextNode(depth + 1);
-                while (!matchDelimiter(begin, iter)) {
-                    if (iter == null) {
-                        throw new RuntimeException("未闭合: " + begin);
-                    } else if (isClose(iter)) {
-                        throw new RuntimeException("不匹配: " + iter);
+        // 显式栈, 嵌套多深都不会爆栈
+        /*@Nullable*/ Node nextSexp() {
+            Deque<List<Node>> stack = new ArrayDeque<>();
+            while (true) {
+                Node tok = nextToken();
+                Node node;
+                if (tok == null) {
+                    if (stack.isEmpty()) {
+                        return null;
                     } else {
-                        elements.add(iter);
-                        iter = nextNode(depth + 1);
+                        throw new RuntimeException("未闭合: " + TUPLE_BEGIN);
+                    }
+                } else if (isOpen(tok)) {
+                    stack.push(new ArrayList<>());
+                    continue;
+                } else if (isClose(tok)) {
+                    if (stack.isEmpty()) {
+                        throw new RuntimeException("不匹配: " + tok);
                     }
+                    node = new Tuple(stack.pop());
+                } else {
+                    node = tok;
+                }
+                if (stack.isEmpty()) {
+                    return node;
+                } else {
+                    stack.peek().add(node);
                 }
-                return new Tuple(elements);
-            } else {
-                return begin;
             }
         }
 
         /*@Nullable*/ Node nextToken() {
             skipComment();
-            if (offset >= input.length()) {
+            int c = peek();
+            if (c < 0) {
                 return null;
             }
 
-            char cur = input.charAt(offset);
-            if (isDelimiter(cur)) {
-                offset++;
-                return new Delimiter(cur);
+            if (isDelimiter((char) c)) {
+                read();
+                return new Delimiter((char) c);
             }
 
-            if (input.charAt(offset) == '"' && (offset == 0 || input.charAt(offset - 1) != '\\')) {
-                int start = offset;
-                offset++; // skip "
-                while (offset < input.length() && !(input.charAt(offset) == '"' && input.charAt(offset - 1) != '\\')) {
-                    if (input.charAt(offset) == '\n') {
-                        throw new RuntimeException("字符串不能换行");
+            if (c == '"' && prev != '\\') {
+                read(); // skip "
+                StringBuilder sb = new StringBuilder();
+                while (!((c = peek()) == '"' && prev != '\\')) {
+                    if (c < 0) {
+                        throw new RuntimeException("未闭合字符串");
                     }
-                    offset++;
-                }
-                if (offset >= input.length()) {
-                    throw new RuntimeException("未闭合字符串");
-                }
-                offset++; // skip "
-                int end = offset;
-                String content = input.substring(start + 1, end - 1);
-                return new Str(content);
-            }
-
-            int start = offset;
-            if (isDigit(input.charAt(start))) {
-                while (offset < input.length() && !isWhitespace(cur) && !isDelimiter(cur)) {
-                    if (++offset < input.length()) {
-                        cur = input.charAt(offset);
+                    if (c == '\n') {
+                        throw new RuntimeException("字符串不能换行");
                     }
+                    sb.append(read());
                 }
-                return new Int(input.substring(start, offset));
+                read(); // skip "
+                return new Str(sb.toString());
             }
 
-            while (offset < input.length() && !isWhitespace(cur) && !isDelimiter(cur)) {
-                if (++offset < input.length()) {
-                    cur = input.charAt(offset);
-                }
+            boolean digit = isDigit((char) c);
+            StringBuilder sb = new StringBuilder();
+            while ((c = peek()) >= 0 && !isWhitespace((char) c) && !isDelimiter((char) c)) {
+                sb.append(read());
             }
-            return new Name(input.substring(start, offset));
+            return digit ? new Int(sb.toString()) : new Name(sb.toString());
         }
 
         void skipComment() {
             boolean seenComment = true;
             while (seenComment) {
                 seenComment = false;
-                while (offset < input.length() && isWhitespace(input.charAt(offset))) {
-                    offset++;
+                int c;
+                while ((c = peek()) >= 0 && isWhitespace((char) c)) {
+                    read();
                 }
-                if (offset + LINE_COMMENT.length() <= input.length() && input.startsWith(LINE_COMMENT, offset)) {
-                    while (offset < input.length() && input.charAt(offset) != '\n') {
-                        offset++;
+                if (c == LINE_COMMENT) {
+                    while ((c = peek()) >= 0 && c != '\n') {
+                        read();
                     }
-                    if (offset < input.length()) {
-                        offset++;
+                    if (c >= 0) {
+                        read();
                     }
                     seenComment = true;
                 }
             }
         }
 
-        boolean isDelimiter(char c) { return c == TUPLE_BEGIN || c == TUPLE_END; }
-        boolean isOpen(Node c) { return c instanceof Delimiter && ((Delimiter) c).shape == TUPLE_BEGIN; }
-        boolean isClose(Node c) { return c instanceof Delimiter && ((Delimiter) c).shape == TUPLE_END; }
-        boolean matchDelimiter(Node open, Node close) { return isOpen(open) && isClose(close); }
-    }
-
+        // -1 表示读完了
+        int peek() {
+            if (!buf.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return buf.get(buf.position());
+        }
+
+        char read() {
+            prev = buf.get();
+            return prev;
+        }
+
+        boolean fill() {
+            if (eof) {
+                return false;
+            }
+            buf.compact();
+            try {
+                if (reader != null) {
+                    if (reader.read(buf) < 0) {
+                        eof = true;
+                    }
+                } else {
+                    assert bytes != null && decoder != null;
+                    CoderResult r = decoder.decode(bytes, buf, true);
+                    if (r.isError()) {
+                        r.throwException();
+                    }
+                    if (!bytes.hasRemaining()) {
+                        decoder.flush(buf);
+                        eof = true;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            ((Buffer) buf).flip();
+            return buf.hasRemaining();
+        }
+
+        // 转成 Buffer 再 flip, jdk9+ 编译出来才能在 8 上跑
+        static CharBuffer emptyBuffer() {
+            CharBuffer buf = CharBuffer.allocate(8192);
+            ((Buffer) buf).flip();
+            return buf;
+        }
+
+        boolean isDelimiter(char c) { return c == TUPLE_BEGIN || c == TUPLE_END; }
+        boolean isOpen(Node c) { return c instanceof Delimiter && ((Delimiter) c).shape == TUPLE_BEGIN; }
+        boolean isClose(Node c) { return c instanceof Delimiter && ((Delimiter) c).shape == TUPLE_END; }
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     /* --------------------  Compiler ----------------------- */
     class Compiler {
-        final static Visitor<Expr, Env<Expr>> expander = new Expander();
+        final static Visitor<Expr, Env<Expr>> expander = Env.shared(new Expander());
 
         // expander 负责把 close 掉 free var, 保证生成结果 expr 都是 closed term
         static class Expander implements Visitor<Expr, Env<Expr>> {
             @Override public Expr visit(Sym s, Env<Expr> env) { return env.lookup(s); }
-            @Override public Expr visit(App s, Env<Expr> env) { return new App(visit(s.abs, env), visit(s.arg, env)); }
-            @Override public Expr visit(Abs s, Env<Expr> env) {
-                // close term, 干掉 free var
-                Env<Expr> subEnv = new Env<>(env);
-                subEnv.put(s.param, s.param);
-                Expr body = visit(s.body, subEnv);
-                return new Abs(s.param, body);
+            @Override public Expr visit(App s, Env<Expr> env) { return expand(s, env); }
+            @Override public Expr visit(Abs s, Env<Expr> env) { return expand(s, env); }
+
+            // 显式栈后序构造, 长 list/字符串 嵌套很深也不爆栈
+            // closed 子项展开后结构不变, 直接复用原节点, 同一个节点 (比如字符串里共享的丘齐数) 再遇到就不再遍历
+            static Expr expand(Expr expr, Env<Expr> env) {
+                Set<Expr> closed = Collections.newSetFromMap(new IdentityHashMap<>());
+                Deque<Task> todo = new ArrayDeque<>();
+                Deque<Done> done = new ArrayDeque<>();
+                todo.push(new Task(expr, env, new Env<>(null), 0, false));
+                while (!todo.isEmpty()) {
+                    Task t = todo.pop();
+                    Expr e = t.expr;
+                    if (t.build) {
+                        Done d;
+                        if (e instanceof App) {
+                            Done arg = done.pop();
+                            Done abs = done.pop();
+                            d = new Done(e, Math.max(abs.escape, arg.escape), abs.free || arg.free);
+                            if (!d.closed()) {
+                                d.expr = new App(abs.expr, arg.expr);
+                            }
+                        } else {
+                            Done body = done.pop();
+                            d = new Done(e, Math.max(body.escape - 1, 0), body.free);
+                            if (!d.closed()) {
+                                d.expr = new Abs(((Abs) e).param, body.expr);
+                            }
+                        }
+                        if (d.closed()) {
+                            closed.add(e);
+                        }
+                        done.push(d);
+                    } else if (closed.contains(e)) {
+                        done.push(new Done(e, 0, false));
+                    } else if (e instanceof Sym) {
+                        Integer level = t.levels.find((Sym) e);
+                        if (level == null) {
+                            done.push(new Done(t.env.lookup((Sym) e), 0, true));
+                        } else {
+                            done.push(new Done(e, t.depth - level + 1, false));
+                        }
+                    } else if (e instanceof App) {
+                        todo.push(new Task(e, t.env, t.levels, t.depth, true));
+                        todo.push(new Task(((App) e).arg, t.env, t.levels, t.depth, false));
+                        todo.push(new Task(((App) e).abs, t.env, t.levels, t.depth, false));
+                    } else {
+                        // close term, 干掉 free var
+                        Abs abs = (Abs) e;
+                        Env<Expr> subEnv = new Env<>(t.env);
+                        subEnv.put(abs.param, abs.param);
+                        Env<Integer> levels = new Env<>(t.levels);
+                        levels.put(abs.param, t.depth + 1);
+                        todo.push(new Task(e, t.env, t.levels, t.depth, true));
+                        todo.push(new Task(abs.body, subEnv, levels, t.depth + 1, false));
+                    }
+                }
+                return done.pop().expr;
+            }
+
+            static final class Task {
+                final Expr expr;
+                final Env<Expr> env;
+                final Env<Integer> levels; // 参数 -> 所在 λ 的层数
+                final int depth;
+                final boolean build; // 子项已展开, 待构造
+                Task(Expr expr, Env<Expr> env, Env<Integer> levels, int depth, boolean build) {
+                    this.expr = expr;
+                    this.env = env;
+                    this.levels = levels;
+                    this.depth = depth;
+                    this.build = build;
+                }
+            }
+
+            static final class Done {
+                Expr expr;
+                final int escape; // 引用了外面多少层 λ 的参数
+                final boolean free; // 引用了环境里的定义
+                Done(Expr expr, int escape, boolean free) {
+                    this.expr = expr;
+                    this.escape = escape;
+                    this.free = free;
+                }
+                boolean closed() { return escape == 0 && !free; }
+            }
+        }
+
+        // hash consing, 结构相同的子项共享同一个节点, 树变成 DAG
+        // closed 子项按 de Bruijn 结构比较, α 等价即共享;
+        // open 子项按名字结构比较, 只有同名才共享, 共享后换到别的位置名字含义不变
+        static class HashCons {
+            final static Object APP = new Object();
+            final static Object ABS = new Object();
+
+            // 上下文相关的 de Bruijn key, 自身也驻留, 子 key 只比较 identity
+            static final class Key {
+                final Object tag; // Sym: 自由变量, Integer: de Bruijn index, APP, ABS
+                final /*@Nullable*/ Key l;
+                final /*@Nullable*/ Key r;
+                final int escape; // 引用了子项外多少层 binder
+                final boolean free;
+                final int hash;
+                Key(Object tag, /*@Nullable*/ Key l, /*@Nullable*/ Key r, int escape, boolean free) {
+                    this.tag = tag;
+                    this.l = l;
+                    this.r = r;
+                    this.escape = escape;
+                    this.free = free;
+                    this.hash = (tag.hashCode() * 31 + System.identityHashCode(l)) * 31 + System.identityHashCode(r);
+                }
+                boolean closed() { return escape == 0 && !free; }
+                @Override public int hashCode() { return hash; }
+                @Override public boolean equals(Object o) {
+                    if (!(o instanceof Key)) return false;
+                    Key k = (Key) o;
+                    return tag.equals(k.tag) && l == k.l && r == k.r;
+                }
+            }
+
+            static final class Shared {
+                final Expr expr;
+                final Key key;
+                Shared(Expr expr, Key key) {
+                    this.expr = expr;
+                    this.key = key;
+                }
+            }
+
+            static final class Scope {
+                final Sym param;
+                final /*@Nullable*/ Scope up;
+                Scope(Sym param, /*@Nullable*/ Scope up) {
+                    this.param = param;
+                    this.up = up;
+                }
+            }
+
+            final Map<Key, Key> keys = new HashMap<>();
+            final Map<Key, Expr> closed = new IdentityHashMap<>();
+            final Map<List<Object>, Expr> open = new HashMap<>();
+            // 输入本身可能已经共享 (primitive 展开), closed 的输入节点与上下文无关, 只处理一次
+            final Map<Expr, Shared> done = new IdentityHashMap<>();
+
+            Expr share(Expr e) {
+                return share(e, null).expr;
+            }
+
+            Shared share(Expr e, /*@Nullable*/ Scope scope) {
+                Shared shared = done.get(e);
+                if (shared != null) {
+                    return shared;
+                }
+                if (e instanceof Sym) {
+                    int i = indexOf(scope, (Sym) e);
+                    shared = new Shared(e, i < 0 ? key(e, null, null, 0, true) : key(i, null, null, i + 1, false));
+                } else if (e instanceof App) {
+                    App app = (App) e;
+                    Shared abs = share(app.abs, scope);
+                    Shared arg = share(app.arg, scope);
+                    Key k = key(APP, abs.key, arg.key, Math.max(abs.key.escape, arg.key.escape), abs.key.free || arg.key.free);
+                    Expr canonical = canonical(k, Arrays.asList(APP, abs.expr, arg.expr),
+                            () -> abs.expr == app.abs && arg.expr == app.arg ? app : new App(abs.expr, arg.expr));
+                    shared = new Shared(canonical, k);
+                } else if (e instanceof Abs) {
+                    Abs abs = (Abs) e;
+                    Shared body = share(abs.body, new Scope(abs.param, scope));
+                    Key k = key(ABS, body.key, null, Math.max(body.key.escape - 1, 0), body.key.free);
+                    Expr canonical = canonical(k, Arrays.asList(abs.param, body.expr),
+                            () -> body.expr == abs.body ? abs : new Abs(abs.param, body.expr));
+                    shared = new Shared(canonical, k);
+                } else {
+                    throw new IllegalStateException();
+                }
+                if (shared.key.closed()) {
+                    if (shared.expr != e && UnChurchification.Jets.primitive(e)) {
+                        // jet 按 identity 认 primitive 的定义, 共享时留原来的节点, 后面结构相同的子项都换成它
+                        closed.put(shared.key, e);
+                        shared = new Shared(e, shared.key);
+                    }
+                    done.put(e, shared);
+                }
+                return shared;
+            }
+
+            Expr canonical(Key k, List<Object> named, Supplier<Expr> make) {
+                if (k.closed()) {
+                    return closed.computeIfAbsent(k, it -> make.get());
+                } else {
+                    return open.computeIfAbsent(named, it -> make.get());
+                }
+            }
+
+            Key key(Object tag, /*@Nullable*/ Key l, /*@Nullable*/ Key r, int escape, boolean free) {
+                return keys.computeIfAbsent(new Key(tag, l, r, escape, free), it -> it);
+            }
+
+            static int indexOf(/*@Nullable*/ Scope scope, Sym sym) {
+                for (int i = 0; scope != null; scope = scope.up, i++) {
+                    if (scope.param == sym) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+        }
+
+        // 部分求值, 可选的优化 pass, 在 expand 之后, codegen 之前
+        // β: 实参是 value (Sym/Abs), 或者形参只出现一次且不在 λ 里头 (不会重复计算)
+        // η: (λ (x) (M x)) ~> M, M 是 value 且 x 不在 M 里
+        // 无用绑定: (λ (x) M) 的 x 不在 M 里, 实参是 value 才丢掉, 否则要保留它的求值 (可能不停机或出错)
+        // fuel 限制规约步数, budget 限制代码膨胀的节点数, 保证一定停机; 多处使用的大 λ 不复制
+        // loop breaker: 正在展开的 λ 再次出现在函数位置时不展开, 自应用不展开, Y/Ω 不会无限展开
+        static class Optimizer {
+            final static int FUEL = 10_000;
+            final static int BUDGET = 100_000;
+            // 多处使用的实参, 超过这个大小就不复制
+            final static int INLINE = 16;
+            // 嵌套展开的层数上限, 防止爆栈
+            final static int DEPTH = 256;
+
+            int fuel;
+            int budget;
+            final Set<Abs> unfolding = Collections.newSetFromMap(new IdentityHashMap<>());
+            final Map<Expr, Set<Sym>> frees = new IdentityHashMap<>();
+            final Map<Expr, Integer> sizes = new IdentityHashMap<>();
+
+            Optimizer(int fuel, int budget) {
+                this.fuel = fuel;
+                this.budget = budget;
+            }
+
+            // 栈上的帧 [子项, 阶段]: VISIT 要优化它, POST 子项都做完了, 结果在 done 上; UNFOLDED 展开完了
+            final static int VISIT = 0, POST = 1, UNFOLDED = 2;
+
+            // 显式栈, 很长的字面量 (字符串, 深的 list) 不爆宿主栈; 先做函数部分再做参数, fuel 的消耗顺序和递归一样
+            Expr optimize(Expr root) {
+                Deque<Object[]> todo = new ArrayDeque<>();
+                Deque<Expr> done = new ArrayDeque<>();
+                todo.push(new Object[] { root, VISIT });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    Expr e = (Expr) t[0];
+                    int phase = (int) t[1];
+                    if (phase == UNFOLDED) {
+                        unfolding.remove(e);
+                    } else if (e instanceof Sym) {
+                        done.push(e);
+                    } else if (phase == VISIT) {
+                        todo.push(new Object[] { e, POST });
+                        if (e instanceof Abs) {
+                            todo.push(new Object[] { ((Abs) e).body, VISIT });
+                        } else {
+                            todo.push(new Object[] { ((App) e).arg, VISIT });
+                            todo.push(new Object[] { ((App) e).abs, VISIT });
+                        }
+                    } else if (e instanceof Abs) {
+                        Abs abs = (Abs) e;
+                        Expr body = done.pop();
+                        if (fuel > 0 && body instanceof App) {
+                            App app = (App) body;
+                            if (app.arg == abs.param && isValue(app.abs) && !frees(app.abs).contains(abs.param)) {
+                                fuel--;
+                                done.push(app.abs);
+                                continue;
+                            }
+                        }
+                        done.push(body == abs.body ? abs : new Abs(abs.param, body));
+                    } else {
+                        App app = (App) e;
+                        Expr a = done.pop();
+                        Expr f = done.pop();
+                        Expr r = reduce(app, f, a, todo);
+                        if (r != null) {
+                            done.push(r);
+                        }
+                    }
+                }
+                return done.pop();
+            }
+
+            // (f a) 的 f 和 a 都优化过了; 能 β 就 β, 要接着优化展开的结果时排进 todo, 返回 null
+            /*@Nullable*/ Expr reduce(App app, Expr f, Expr a, Deque<Object[]> todo) {
+                if (fuel > 0 && f instanceof Abs && !unfolding.contains(f) && unfolding.size() < DEPTH && !same(f, a)) {
+                    Abs lam = (Abs) f;
+                    int occ = occurrences(lam.param, lam.body, false);
+                    if (occ == 0 && isValue(a)) {
+                        fuel--;
+                        return lam.body;
+                    }
+                    boolean linear = occ == 1 && occurrences(lam.param, lam.body, true) == 0;
+                    int growth = a instanceof Sym ? 0 : (occ - 1) * size(a);
+                    if ((isValue(a) || linear) && growth <= budget && (growth == 0 || size(a) <= INLINE)) {
+                        fuel--;
+                        budget -= growth;
+                        unfolding.add(lam);
+                        todo.push(new Object[] { lam, UNFOLDED });
+                        todo.push(new Object[] { subst(lam.body, lam.param, a, frees(a)), VISIT });
+                        return null;
+                    }
+                }
+                return f == app.abs && a == app.arg ? app : new App(f, a);
+            }
+
+            // 自应用 (y y) (f f) 是 Y 和 Ω 递归的来源, 不展开
+            static boolean same(Expr a, Expr b) {
+                Deque<Expr> todo = new ArrayDeque<>();
+                todo.push(a);
+                todo.push(b);
+                while (!todo.isEmpty()) {
+                    Expr y = todo.pop(), x = todo.pop();
+                    if (x == y) {
+                        continue;
+                    } else if (x instanceof App && y instanceof App) {
+                        todo.push(((App) x).abs);
+                        todo.push(((App) y).abs);
+                        todo.push(((App) x).arg);
+                        todo.push(((App) y).arg);
+                    } else if (x instanceof Abs && y instanceof Abs && ((Abs) x).param == ((Abs) y).param) {
+                        todo.push(((Abs) x).body);
+                        todo.push(((Abs) y).body);
+                    } else {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            static boolean isValue(Expr e) {
+                return e instanceof Sym || e instanceof Abs;
+            }
+
+            // body[x := v], 碰到会捕获 v 里自由变量的 binder 就改名
+            // 显式栈: [子项, x, v, fv] 是要代换的子项; [Sym/null] 是把 done 上的结果包成 λ/App; [THEN, x, v, fv] 把 done 上的结果再代换一次 (改名之后)
+            Expr subst(Expr root, Sym x0, Expr v0, Set<Sym> fv0) {
+                Deque<Object[]> todo = new ArrayDeque<>();
+                Deque<Expr> done = new ArrayDeque<>();
+                todo.push(new Object[] { root, x0, v0, fv0 });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    if (t.length == 1) {
+                        Expr body = done.pop();
+                        if (t[0] == null) {
+                            done.push(new App(done.pop(), body));
+                        } else {
+                            done.push(new Abs((Sym) t[0], body));
+                        }
+                        continue;
+                    }
+                    Expr body = t[0] == THEN ? done.pop() : (Expr) t[0];
+                    Sym x = (Sym) t[1];
+                    Expr v = (Expr) t[2];
+                    @SuppressWarnings("unchecked")
+                    Set<Sym> fv = (Set<Sym>) t[3];
+                    if (body instanceof Sym) {
+                        done.push(body == x ? v : body);
+                    } else if (!frees(body).contains(x)) {
+                        done.push(body);
+                    } else if (body instanceof App) {
+                        App app = (App) body;
+                        todo.push(new Object[] { null });
+                        todo.push(new Object[] { app.arg, x, v, fv });
+                        todo.push(new Object[] { app.abs, x, v, fv });
+                    } else {
+                        Abs abs = (Abs) body;
+                        if (fv.contains(abs.param)) {
+                            Sym fresh = fresh(abs.param, fv, frees(abs.body));
+                            todo.push(new Object[] { fresh });
+                            todo.push(new Object[] { THEN, x, v, fv });
+                            todo.push(new Object[] { abs.body, abs.param, fresh, Collections.singleton(fresh) });
+                        } else {
+                            todo.push(new Object[] { abs.param });
+                            todo.push(new Object[] { abs.body, x, v, fv });
+                        }
+                    }
+                }
+                return done.pop();
+            }
+
+            final static Object THEN = new Object();
+
+            static Sym fresh(Sym s, Set<Sym> a, Set<Sym> b) {
+                for (int i = 1; ; i++) {
+                    Sym sym = symOf(s.name + "_" + i);
+                    if (!a.contains(sym) && !b.contains(sym)) {
+                        return sym;
+                    }
+                }
+            }
+
+            // x 在 e 里自由出现的次数, underLambda 只数 λ 里头的
+            int occurrences(Sym x, Expr e, boolean underLambda) {
+                int n = 0;
+                Deque<Object[]> todo = new ArrayDeque<>();
+                todo.push(new Object[] { e, underLambda });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    Expr it = (Expr) t[0];
+                    boolean under = (boolean) t[1];
+                    if (!frees(it).contains(x)) {
+                        continue;
+                    } else if (it instanceof Sym) {
+                        n += under ? 0 : 1;
+                    } else if (it instanceof App) {
+                        todo.push(new Object[] { ((App) it).arg, under });
+                        todo.push(new Object[] { ((App) it).abs, under });
+                    } else {
+                        // λ 里头的都算
+                        todo.push(new Object[] { ((Abs) it).body, false });
+                    }
+                }
+                return n;
+            }
+
+            // frees 和 size 都按节点记下来, 后序算没算过的子项
+            Set<Sym> frees(Expr e) {
+                Set<Sym> fv = frees.get(e);
+                if (fv == null) {
+                    for (Expr it : postorder(e, frees.keySet())) {
+                        if (it instanceof Sym) {
+                            fv = Collections.singleton((Sym) it);
+                        } else if (it instanceof App) {
+                            fv = new HashSet<>(frees.get(((App) it).abs));
+                            fv.addAll(frees.get(((App) it).arg));
+                        } else {
+                            fv = new HashSet<>(frees.get(((Abs) it).body));
+                            fv.remove(((Abs) it).param);
+                        }
+                        frees.put(it, fv);
+                    }
+                }
+                return fv;
+            }
+
+            int size(Expr e) {
+                Integer sz = sizes.get(e);
+                if (sz == null) {
+                    for (Expr it : postorder(e, sizes.keySet())) {
+                        if (it instanceof Sym) {
+                            sz = 1;
+                        } else if (it instanceof App) {
+                            sz = 1 + sizes.get(((App) it).abs) + sizes.get(((App) it).arg);
+                        } else {
+                            sz = 1 + sizes.get(((Abs) it).body);
+                        }
+                        sizes.put(it, sz);
+                    }
+                }
+                return sz;
+            }
+
+            // e 下面还不在 known 里的子项, 子项在前, 每个只出现一次, 最后一个是 e
+            static List<Expr> postorder(Expr e, Set<Expr> known) {
+                List<Expr> order = new ArrayList<>();
+                Set<Expr> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+                Deque<Object[]> todo = new ArrayDeque<>();
+                todo.push(new Object[] { e, false });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    Expr it = (Expr) t[0];
+                    if ((boolean) t[1]) {
+                        order.add(it);
+                    } else if (!known.contains(it) && seen.add(it)) {
+                        todo.push(new Object[] { it, true });
+                        if (it instanceof App) {
+                            todo.push(new Object[] { ((App) it).arg, false });
+                            todo.push(new Object[] { ((App) it).abs, false });
+                        } else if (it instanceof Abs) {
+                            todo.push(new Object[] { ((Abs) it).body, false });
+                        }
+                    }
+                }
+                return order;
+            }
+        }
+
+        // 不把 primitive 展开到每个引用处, 只在最外层绑定一次用到的: ((λ (+) ((λ (=) program) S_EQ)) S_SUM)
+        // 绑定的是 bootstrap 环境里的同一个 Expr, 已经 closed, 顺序无关, jets 照样认得出来
+        static class Prelude {
+            // primitive 的定义, 源码里拼进来的前面的 primitive 换回它的名字, 每个定义只闭包在前面的绑定上
+            final static Map<Sym, Expr> defs = new LinkedHashMap<>();
+            static {
+                Map<List<Object>, Integer> ids = new HashMap<>();
+                Map<Integer, Sym> known = new HashMap<>();
+                primitives().forEach((n, s) -> {
+                    Expr def = compile1(parse(s));
+                    Map<Expr, Integer> memo = new IdentityHashMap<>();
+                    id(def, ids, memo);
+                    defs.put(symOf(n), share(def, known, memo, new ArrayDeque<>()));
+                    known.putIfAbsent(memo.get(def), symOf(n));
+                });
+            }
+
+            // hash consing: 结构相同 (Sym 相同) 的子项编号相同
+            static int id(Expr e, Map<List<Object>, Integer> ids, Map<Expr, Integer> memo) {
+                Integer id = memo.get(e);
+                if (id == null) {
+                    List<Object> key;
+                    if (e instanceof Sym) {
+                        key = Arrays.asList("sym", e);
+                    } else if (e instanceof App) {
+                        key = Arrays.asList("app", id(((App) e).abs, ids, memo), id(((App) e).arg, ids, memo));
+                    } else {
+                        key = Arrays.asList("λ", ((Abs) e).param, id(((Abs) e).body, ids, memo));
+                    }
+                    id = ids.computeIfAbsent(key, k -> ids.size());
+                    memo.put(e, id);
+                }
+                return id;
+            }
+
+            // 和前面某个定义结构相同的子项换成它的名字, 被内层 λ 参数遮住的名字不换
+            static Expr share(Expr e, Map<Integer, Sym> known, Map<Expr, Integer> ids, Deque<Sym> bound) {
+                Sym name = known.get(ids.get(e));
+                if (name != null && !bound.contains(name)) {
+                    return name;
+                } else if (e instanceof Sym) {
+                    return e;
+                } else if (e instanceof App) {
+                    App app = (App) e;
+                    Expr f = share(app.abs, known, ids, bound);
+                    Expr a = share(app.arg, known, ids, bound);
+                    return f == app.abs && a == app.arg ? app : new App(f, a);
+                } else {
+                    Abs abs = (Abs) e;
+                    bound.push(abs.param);
+                    Expr body = share(abs.body, known, ids, bound);
+                    bound.pop();
+                    return body == abs.body ? abs : new Abs(abs.param, body);
+                }
+            }
+
+            // 每个定义闭包在它前面的 prelude 绑定上, 依赖也只绑定一次, 不再各自带一份展开
+            static Expr link(Expr program) {
+                Set<Sym> used = free(program);
+                List<Sym> names = new ArrayList<>(defs.keySet());
+                List<Sym> prims = new ArrayList<>();
+                // 依赖都在前面, 倒着扫一遍就能收齐传递依赖
+                for (int i = names.size() - 1; i >= 0; i--) {
+                    if (used.remove(names.get(i))) {
+                        prims.add(0, names.get(i));
+                        used.addAll(free(defs.get(names.get(i))));
+                    }
+                }
+                if (!used.isEmpty()) {
+                    throw new RuntimeException(used.iterator().next() + " not found");
+                }
+                Expr e = program;
+                for (int i = prims.size() - 1; i >= 0; i--) {
+                    e = new App(new Abs(prims.get(i), e), defs.get(prims.get(i)));
+                }
+                return e;
+            }
+
+            // 显式栈后序遍历, 算法同 Expander: escape 为 0 的子项 closed, 再遇到 (共享的丘齐数) 直接跳过
+            static Set<Sym> free(Expr expr) {
+                return free(expr, Collections.newSetFromMap(new IdentityHashMap<>()));
+            }
+
+            // closed 子项顺便收进 closed (按 identity)
+            static Set<Sym> free(Expr expr, Set<Expr> closed) {
+                Set<Sym> free = new LinkedHashSet<>();
+                Map<Sym, Deque<Integer>> levels = new HashMap<>();
+                Deque<Object[]> todo = new ArrayDeque<>();
+                Deque<Integer> done = new ArrayDeque<>();
+                todo.push(new Object[] { expr, 0, false });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    Expr e = (Expr) t[0];
+                    int depth = (int) t[1];
+                    if ((boolean) t[2]) {
+                        int escape;
+                        if (e instanceof App) {
+                            escape = Math.max(done.pop(), done.pop());
+                        } else {
+                            levels.get(((Abs) e).param).pop();
+                            int body = done.pop();
+                            escape = body == Integer.MAX_VALUE ? body : Math.max(body - 1, 0);
+                        }
+                        if (escape == 0) {
+                            closed.add(e);
+                        }
+                        done.push(escape);
+                    } else if (closed.contains(e)) {
+                        done.push(0);
+                    } else if (e instanceof Sym) {
+                        Deque<Integer> level = levels.get(e);
+                        if (level == null || level.isEmpty()) {
+                            free.add((Sym) e);
+                            done.push(Integer.MAX_VALUE);
+                        } else {
+                            done.push(depth - level.peek() + 1);
+                        }
+                    } else if (e instanceof App) {
+                        todo.push(new Object[] { e, depth, true });
+                        todo.push(new Object[] { ((App) e).arg, depth, false });
+                        todo.push(new Object[] { ((App) e).abs, depth, false });
+                    } else {
+                        Abs abs = (Abs) e;
+                        levels.computeIfAbsent(abs.param, k -> new ArrayDeque<>()).push(depth + 1);
+                        todo.push(new Object[] { e, depth, true });
+                        todo.push(new Object[] { abs.body, depth + 1, false });
+                    }
+                }
+                return free;
             }
         }
 
@@ -352,6 +1841,7 @@ public interface λ {
         }
 
         // 注意: 不能直接替换代码, 一个case (λ (+) (+ 0 0))
+        // 一遍从 Node 直接构造 Expr, 不再拼中间 Tuple 再递归
         static Expr compile1(Node n) {
             if (n instanceof Tuple) {
                 List<Node> ns = ((Tuple) n).els;
@@ -370,20 +1860,17 @@ public interface λ {
                 if (is(car, IF)) {
                     // (if cond then orElse) ~> (cond (lambda () then) (lambda () orElse))
                     assert sz == 4;
-                    Node cond = ns.get(1);
-                    Tuple then = tupleOf(λ, tupleOf(), ns.get(2));
-                    Tuple orElse = tupleOf(λ, tupleOf(), ns.get(3));
-                    return compile1(tupleOf(cond, then, orElse));
+                    return compileIf(compile1(ns.get(1)), compile1(ns.get(2)), compile1(ns.get(3)));
                 }
                 if (is(car, AND)) {
                     // (and a b) ~> (if a b #f)
                     assert sz == 3;
-                    return compile1(tupleOf(iff, ns.get(1), ns.get(2), False));
+                    return compileIf(compile1(ns.get(1)), compile1(ns.get(2)), False);
                 }
                 if (is(car, OR)) {
                     // (or a b) ~> (if a #t b)
                     assert sz == 3;
-                    return compile1(tupleOf(iff, ns.get(1), True, ns.get(2)));
+                    return compileIf(compile1(ns.get(1)), symOf(TRUE), compile1(ns.get(2)));
                 }
 
                 // Binding Forms
@@ -401,11 +1888,16 @@ public interface λ {
                     // 只支持 (quote ()) 表达 nil
                     assert cdr instanceof Tuple;
                     assert ((Tuple) cdr).els.isEmpty();
-                    return compile1(NIL);
+                    return NIL;
+                }
+
+                // List
+                if (is(car, CONS) && sz == 3) {
+                    return compileCons(ns);
                 }
 
                 // Application -- must be last
-                return compileApply(ns);
+                return compileApply(compile1(car), ns, 1);
             }
 
             // Numerals
@@ -425,6 +1917,12 @@ public interface λ {
             throw new IllegalStateException();
         }
 
+        // (if cond then orElse) ~> ((cond (λ (_) then)) (λ (_) orElse))
+        static Expr compileIf(Expr cond, Expr then, Expr orElse) {
+            Sym ignore = symOf("_");
+            return new App(new App(cond, new Abs(ignore, then)), new Abs(ignore, orElse));
+        }
+
         // (let ((v1 exp1) ... (vN expN)) body) ~> ((lambda (v1 ... vN) body) exp1 ... expN)
         static Expr compileLet(List<Node> ns) {
             int sz = ns.size();
@@ -433,12 +1931,6 @@ public interface λ {
 
             List<Node> pairs = ((Tuple) ns.get(1)).els;
             List<Node> params = new ArrayList<>(pairs.size());
-            List<Node> applyArgs = new ArrayList<>(pairs.size() + 1);
-
-            Node body = ns.get(2);
-            Tuple apply = tupleOf(λ, tupleOf(params), body);
-            applyArgs.add(apply);
-
             for (Node it : pairs) {
                 assert it instanceof Tuple;
                 List<Node> pair = ((Tuple) it).els;
@@ -447,12 +1939,17 @@ public interface λ {
                 Node param = pair.get(0);
                 assert param instanceof Name;
                 params.add(param);
-
-                Node arg = pair.get(1);
-                applyArgs.add(arg);
             }
+
             // let 声明的变量之间不能相互依赖
-            return compile1(tupleOf(applyArgs));
+            Expr apply = curry(params, 0, compile1(ns.get(2)));
+            if (pairs.isEmpty()) {
+                return new App(apply, symOf(VOID));
+            }
+            for (Node it : pairs) {
+                apply = new App(apply, compile1(((Tuple) it).els.get(1)));
+            }
+            return apply;
         }
 
         // (letrec ((f lam)) body) ~> (let ((f (Y (λ (f) lam)))) body)
@@ -468,11 +1965,10 @@ public interface λ {
             List<Node> pair = ((Tuple) pair0).els;
             assert pair.size() == 2;
 
-            Node f = pair.get(0);
-            Node lam = pair.get(1);
-            Node body = ns.get(2);
-            Tuple letrec = tupleOf(let, tupleOf(tupleOf(f, tupleOf(Y, tupleOf(λ, tupleOf(f), lam)))), body);
-            return compile1(letrec);
+            Sym f = param(pair.get(0));
+            Expr body = compile1(ns.get(2));
+            Expr lam = compile1(pair.get(1));
+            return new App(new Abs(f, body), new App(Y, new Abs(f, lam)));
         }
 
         // Currying
@@ -481,37 +1977,38 @@ public interface λ {
             int sz = ns.size();
             assert sz == 3;
             Node params = ns.get(1);
-            Node body = ns.get(2);
-
             assert params instanceof Tuple;
-            List<Node> paramLst = ((Tuple) params).els;
-            int paramSz = paramLst.size();
-            if (paramSz == 0) {
-                return new Abs(symOf("_"), compile1(body));
-            } else if (paramSz == 1) {
-                Expr param = compile1(paramLst.get(0));
-                assert param instanceof Sym;
-                return new Abs((Sym) param, compile1(body));
-            } else {
-                Expr param = compile1(paramLst.get(0));
-                assert param instanceof Sym;
-                Tuple subLam = tupleOf(λ, tupleOf(paramLst.subList(1, paramSz)), body);
-                return new Abs((Sym) param, compile1(subLam));
+            return curry(((Tuple) params).els, 0, compile1(ns.get(2)));
+        }
+
+        // 从里往外包 Abs, 没有参数时用 _ 占位
+        static Expr curry(List<Node> params, int from, Expr body) {
+            if (params.size() == from) {
+                return new Abs(symOf("_"), body);
             }
+            for (int i = params.size() - 1; i >= from; i--) {
+                body = new Abs(param(params.get(i)), body);
+            }
+            return body;
+        }
+
+        static Sym param(Node n) {
+            Expr param = compile1(n);
+            assert param instanceof Sym;
+            return (Sym) param;
         }
 
         // Currying
         // (f arg1 ... argN) ~> (... ((f arg1) arg2) ... argN)
         // (a b c c) ~> (((a b) c) d)
-        static Expr compileApply(List<Node> ns) {
-            int sz = ns.size();
-            if (sz == 1) {
-                return new App(compile1(ns.get(0)), symOf(VOID));
-            } else if (sz == 2) {
-                return new App(compile1(ns.get(0)), compile1(ns.get(1)));
-            } else {
-                return new App(compile1(tupleOf(ns.subList(0, ns.size() - 1))), compile1(ns.get(ns.size() - 1)));
+        static Expr compileApply(Expr f, List<Node> ns, int from) {
+            if (ns.size() == from) {
+                return new App(f, symOf(VOID));
+            }
+            for (int i = from; i < ns.size(); i++) {
+                f = new App(f, compile1(ns.get(i)));
             }
+            return f;
         }
 
         // 丘齐数就是将 f 应用到 z 的次数
@@ -519,43 +2016,64 @@ public interface λ {
         // (λ (f) (λ (z) ($apply-n $n)))  -> (λ (f z) ($apply-n $n))
         static Expr churchNumeral(Int nat) {
             assert nat.value >= 0;
-            Name f = nameOf("f");
-            Name z = nameOf("z");
-            Node applyN = z;
-            for (int i = 0; i < nat.value; i++) {
-                applyN = tupleOf(f, applyN);
+            if (nat.value < numerals.length) {
+                Expr num = numerals[nat.value];
+                if (num == null) {
+                    // 并发下可能重复构造, 节点不可变, 谁赢都一样
+                    num = numerals[nat.value] = churchNumeral(nat.value);
+                }
+                return num;
+            }
+            return churchNumeral(nat.value);
+        }
+
+        static Expr churchNumeral(int n) {
+            Sym f = symOf("f");
+            Sym z = symOf("z");
+            Expr applyN = z;
+            for (int i = 0; i < n; i++) {
+                applyN = new App(f, applyN);
             }
-            return compile1(tupleOf(λ, tupleOf(f, z), applyN));
+            return new Abs(f, new Abs(z, applyN));
         }
 
+        // "abc" ~> (cons 97 (cons 98 (cons 99 (quote ()))))
+        // 从尾往头构造, 不递归; 同一个字符的丘齐数只构造一次
         static Expr compileStr(Str s) {
-            /*return compile1(new StringBuilder(s.value).reverse().chars().boxed()
-                    .map(Node::intOf).reduce(
-                            tupleOf(quote, tupleOf()),
-                            (acc, i) -> tupleOf(cons, i, acc),
-                            (a, b) -> b));*/
-            return compile1(cons(s.value.chars().boxed().map(Node::intOf).collect(toList())));
+            Map<Character, Expr> nums = new HashMap<>();
+            Sym cons = symOf(CONS);
+            Expr lst = NIL;
+            for (int i = s.value.length() - 1; i >= 0; i--) {
+                Expr car = nums.computeIfAbsent(s.value.charAt(i), c -> churchNumeral(new Int(c)));
+                lst = new App(new App(cons, car), lst);
+            }
+            return lst;
         }
 
-        static Tuple cons(List<Node> els) {
-            if (els.isEmpty()) {
-                return tupleOf(quote, tupleOf());
-            } else {
-                return tupleOf(cons,  els.get(0), cons(els.subList(1, els.size())));
+        // (cons a (cons b ... rest)) 沿着 cdr 迭代, 长 list 不爆栈
+        static Expr compileCons(List<Node> ns) {
+            List<Node> cars = new ArrayList<>();
+            Node cdr = ns.get(2);
+            cars.add(ns.get(1));
+            while (cdr instanceof Tuple && ((Tuple) cdr).els.size() == 3 && is(((Tuple) cdr).els.get(0), CONS)) {
+                cars.add(((Tuple) cdr).els.get(1));
+                cdr = ((Tuple) cdr).els.get(2);
             }
+            Sym cons = symOf(CONS);
+            Expr lst = compile1(cdr);
+            for (int i = cars.size() - 1; i >= 0; i--) {
+                lst = new App(new App(cons, compile1(cars.get(i))), lst);
+            }
+            return lst;
         }
 
-        final static Node Y = parse(S_Y);
-        final static Node NIL = parse(S_NIL);
+        // 小的丘齐数 (字符) 全局共享
+        final static Expr[] numerals = new Expr[256];
+
+        final static Expr Y = compile1(parse(S_Y));
+        final static Expr NIL = compile1(parse(S_NIL));
+        final static Expr False = compile1(parse(S_FALSE));
 
-        final static Name λ = nameOf(LAMBDA);
-        final static Name let = nameOf(LET);
-        final static Name cons = nameOf(CONS);
-        final static Name quote = nameOf(QUOTE);
-        final static Name iff = nameOf(IF);
-        final static Name True = nameOf(TRUE);
-//        final static Name False = nameOf(FALSE);
-        final static Node False = parse(S_FALSE);
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -569,15 +2087,87 @@ public interface λ {
             default boolean bool()   { return boolify(this); }
             default String string()  { return stringify(this);  }
             default <T> Pair<T> list(UnChurchification<T> unChurch) { return listify(unChurch, this); }
+            default int[] nats()     { return natsOf(this); }
+            default <T> Iterator<T> iterator(UnChurchification<T> unChurch) { return iteratorOf(unChurch, this); }
+            default <T> Stream<T> stream(UnChurchification<T> unChurch)     { return streamOf(unChurch, this); }
+            // 求出 Thunk 的值, 其他 F 本身就是值
+            default F force()        { return this; }
+        }
+
+        // call-by-need 的参数, 第一次 force 时求值并记住结果, 之后直接返回
+        // 多线程 force 同一个 Thunk 只求值一次: code 是 volatile, 在 value 写完之后才清空
+        final class Thunk implements F {
+            private volatile /*@Nullable*/ Supplier<F> code;
+            private /*@Nullable*/ F value;
+            Thunk(Supplier<F> code) { this.code = code; }
+
+            @Override public F force() {
+                if (code != null) {
+                    synchronized (this) {
+                        Supplier<F> c = code;
+                        if (c != null) {
+                            F v = c.get();
+                            value = v == null ? null : v.force();
+                            code = null;
+                        }
+                    }
+                }
+                return value;
+            }
+            @Override public F apply(F f) { return force().apply(f); }
         }
 
-        CodeGen<F, Env<F>> compiler = new Compiler();
+        CodeGen<F, Env<F>> compiler = Env.shared(new Compiler(true));
+
+        CodeGen<F, Env<F>> lazy = Env.shared(new Compiler(true, true));
+
+        CodeGen<F, Env<F>> parallel = Env.shared(new Parallel(true, ForkJoinPool.commonPool(), Parallel.THRESHOLD));
 
         class Compiler implements CodeGen<F, Env<F>> {
-            @Override public F visit(Sym s, Env<F> env) { return env.lookup(s); }
-            @Override public F visit(App s, Env<F> env) { return visit(s.abs, env).apply(visit(s.arg, env)); }
+            final boolean jets;
+            // call-by-need: App 的参数包成 Thunk, 用到才求值, 只求一次
+            final boolean lazy;
+            // jets 打开时, 这个程序里认出来的 jet (Jets.resolve), 求值时只查这张表
+            // null: 共享的 visitor 还没绑到程序上, 求值前先解析一遍, 换成绑定了的 Compiler
+            final /*@Nullable*/ Map<Expr, F> resolved;
+            Compiler(boolean jets) { this(jets, false); }
+            Compiler(boolean jets, boolean lazy) { this(jets, lazy, null); }
+            Compiler(boolean jets, boolean lazy, /*@Nullable*/ Map<Expr, F> resolved) {
+                this.jets = jets;
+                this.lazy = lazy;
+                this.resolved = resolved;
+            }
+
+            /*@Nullable*/ F jet(Expr e) { return jets ? resolved.get(e) : null; }
+
+            @Override public F visit(Sym s, Env<F> env) { return lazy ? env.lookup(s).force() : env.lookup(s); }
+            @Override public F visit(App s, Env<F> env) {
+                if (jets && resolved == null) {
+                    return new Compiler(true, lazy, Jets.resolve(s)).visit(s, env);
+                }
+                F jet = jet(s);
+                if (jet != null) {
+                    return jet;
+                }
+                return lazy ? visit(s.abs, env).apply(delay(s.arg, env)).force() : visit(s.abs, env).apply(visit(s.arg, env));
+            }
+            // 变量直接传原来的 Thunk, λ 本身就是值, 只有 App 需要延迟
+            F delay(Expr arg, Env<F> env) {
+                if (arg instanceof Sym) {
+                    return env.lookup((Sym) arg);
+                } else if (arg instanceof Abs) {
+                    return visit((Abs) arg, env);
+                } else {
+                    F jet = jet(arg);
+                    return jet != null ? jet : new Thunk(() -> visit(arg, env));
+                }
+            }
             @Override public F visit(Abs s, Env<F> env) {
-                return arg -> {
+                if (jets && resolved == null) {
+                    return new Compiler(true, lazy, Jets.resolve(s)).visit(s, env);
+                }
+                F jet = jet(s);
+                return jet != null ? jet : arg -> {
                     Env<F> subEnv = new Env<>(env);
                     subEnv.put(s.param, arg);
                     return visit(s.body, subEnv);
@@ -585,86 +2175,2109 @@ public interface λ {
             }
         }
 
+        // 并行求值: 静态估计开销够大的参数 fork 出去, 和函数部分同时算, apply 之前 join
+        // 求值是纯的, 结果和顺序求值一样; 异常也一样: 先报函数部分的, 参数的异常在 join 处原样抛出
+        // 每次求值先算一遍整个 Expr 的开销表 (只读, 多线程共享), 在 pool 里求值; pool 外面 (比如之后解码时) 退回顺序求值
+        final class Parallel implements CodeGen<F, Env<F>> {
+            // 开销估计: App 算 1, λ (建闭包) 算 1; 调用 λ 加上 body 的开销, 调用未知的函数 (变量) 算 CALL
+            // 调用 letrec 绑定的函数或者 Y 算 LOOP; jet 算 1
+            final static int CALL = 8, LOOP = 1 << 10, THRESHOLD = LOOP;
+
+            final boolean jets;
+            final ForkJoinPool pool;
+            final int threshold;
+            Parallel(boolean jets, ForkJoinPool pool, int threshold) {
+                this.jets = jets;
+                this.pool = pool;
+                this.threshold = threshold;
+            }
 
-        F nil = f -> f;
-        F succ = n -> f -> z -> f.apply(n.apply(f.apply(z))); // (λ (n) (λ (f) (λ (z) (f (n (f z))))))
-        F zero = f -> null;
-        F True = f -> f;
-        F False = f -> f;
+            @Override public F visit(Sym s, Env<F> env) { return evaluate(s, env); }
+            @Override public F visit(App s, Env<F> env) { return evaluate(s, env); }
+            @Override public F visit(Abs s, Env<F> env) { return evaluate(s, env); }
 
-        static int natify(F churchNumeral) {
-            F f = churchNumeral.apply(succ).apply(zero);
-            int i = -1;
-            while (f != null) {
-                f = f.apply(nil);
-                i++;
+            F evaluate(Expr expr, Env<F> env) {
+                Forking forking = new Forking(jets, jets ? Jets.resolve(expr) : null, costs(expr, jets), threshold);
+                return result(pool.invoke(task(() -> forking.visit(expr, env))));
             }
-            return i;
-        }
 
-        static boolean boolify(F churchBoolean) {
-            F f = churchBoolean.apply(a -> True).apply(a -> False);
-            if (f == True) {
-                return true;
-            } else if (f == False) {
-                return false;
-            } else {
-                throw new IllegalStateException();
+            // 跨线程 join 时 ForkJoinTask 会重新构造异常 (消息变成 cause 的 toString), 所以异常当结果带回来, join 的线程原样抛出
+            static ForkJoinTask<Object> task(Supplier<F> body) {
+                return ForkJoinTask.adapt(() -> {
+                    try {
+                        return (Object) body.get();
+                    } catch (RuntimeException | StackOverflowError e) {
+                        return e;
+                    }
+                });
             }
-        }
 
-        static String stringify(F churchStr) {
-            Pair<Integer> pair = listify(UnChurchification::natify, churchStr);
-            byte[] bytes = new byte[pair.size()];
-            int i = 0;
-            while (pair.car != null) {
-                bytes[i++] = pair.car.byteValue();
-                pair = pair.cdr;
+            static F result(Object r) {
+                if (r instanceof RuntimeException) {
+                    throw (RuntimeException) r;
+                } else if (r instanceof StackOverflowError) {
+                    throw (StackOverflowError) r;
+                }
+                return (F) r;
             }
-            return new String(bytes, StandardCharsets.US_ASCII);
-        }
 
-        static <T> Pair<T> listify(UnChurchification<T> unChurch, F churchList) {
-            class VF<T1> implements F {
-                final T1 val;
-                VF(T1 val) {
-                    this.val = val;
+            static final class Forking extends Compiler {
+                final Map<Expr, Integer> costs;
+                final int threshold;
+                Forking(boolean jets, /*@Nullable*/ Map<Expr, F> resolved, Map<Expr, Integer> costs, int threshold) {
+                    super(jets, false, resolved);
+                    this.costs = costs;
+                    this.threshold = threshold;
                 }
-                @Override public F apply(F f) {
-                    return nil.apply(f);
+
+                // 函数部分和参数都够大才 fork, 只有一边大的 (比如 (* n (fact (- n 1)))) 并行不起来, 只剩开销
+                @Override public F visit(App s, Env<F> env) {
+                    Integer absCost = costs.get(s.abs), argCost = costs.get(s.arg);
+                    if (absCost == null || argCost == null || Math.min(absCost, argCost) < threshold || !ForkJoinTask.inForkJoinPool() || jet(s) != null) {
+                        return super.visit(s, env);
+                    }
+                    ForkJoinTask<Object> arg = task(() -> visit(s.arg, env)).fork();
+                    F f = visit(s.abs, env);
+                    return f.apply(result(arg.join()));
+                }
+            }
+
+            // 后序遍历 (显式栈) 算每个节点的开销, 共享的子项只算一次
+            // letrec 展开成 ((λ (f) body) (Y (λ (f) lam))), 两处的 f 都记成递归函数; 按名字记, 不管遮蔽, 只是估计
+            static Map<Expr, Integer> costs(Expr root, boolean jets) {
+                List<Expr> order = new ArrayList<>();
+                Set<Expr> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+                Set<Sym> loops = new HashSet<>();
+                Deque<Object[]> stack = new ArrayDeque<>();
+                stack.push(new Object[] { root, false });
+                while (!stack.isEmpty()) {
+                    Object[] t = stack.pop();
+                    Expr e = (Expr) t[0];
+                    if ((boolean) t[1]) {
+                        order.add(e);
+                        continue;
+                    }
+                    if (!seen.add(e)) {
+                        continue;
+                    }
+                    stack.push(new Object[] { e, true });
+                    if (e instanceof App) {
+                        App app = (App) e;
+                        if (app.abs instanceof Abs && app.arg instanceof App && ((App) app.arg).abs == λ.Compiler.Y) {
+                            loops.add(((Abs) app.abs).param);
+                        } else if (app.abs == λ.Compiler.Y && app.arg instanceof Abs) {
+                            loops.add(((Abs) app.arg).param);
+                        }
+                        stack.push(new Object[] { app.arg, false });
+                        stack.push(new Object[] { app.abs, false });
+                    } else if (e instanceof Abs) {
+                        stack.push(new Object[] { ((Abs) e).body, false });
+                    }
+                }
+                Map<Expr, Integer> costs = new IdentityHashMap<>();
+                for (Expr e : order) {
+                    long cost;
+                    if (e instanceof Sym) {
+                        cost = 0;
+                    } else if (e instanceof Abs || jets && Jets.of(e) != null) {
+                        cost = 1;
+                    } else {
+                        App app = (App) e;
+                        cost = 1L + costs.get(app.abs) + costs.get(app.arg) + call(app.abs, costs, loops, jets);
+                    }
+                    costs.put(e, (int) Math.min(cost, Integer.MAX_VALUE));
+                }
+                return costs;
+            }
+
+            // 调用 f 的值的开销
+            static int call(Expr f, Map<Expr, Integer> costs, Set<Sym> loops, boolean jets) {
+                if (jets && Jets.of(f) != null) {
+                    return 1;
+                } else if (f instanceof Abs) {
+                    return costs.get(((Abs) f).body);
+                }
+                // 柯里化的多个参数: 按最里面的函数算
+                while (f instanceof App && f != λ.Compiler.Y) {
+                    f = ((App) f).abs;
                 }
+                if (jets && Jets.of(f) != null) {
+                    return 1;
+                }
+                return f == λ.Compiler.Y || loops.contains(f) ? LOOP : CALL;
             }
-            F onCons = car -> cdr -> new VF<>(new Pair<>(unChurch.unChurchify(car), listify(unChurch, cdr)));
-            F onNil = nil -> new VF<>(new Pair<>(null, null));
-            //noinspection unchecked
-            VF<Pair<T>> vf = ((VF<Pair<T>>) churchList.apply(onCons).apply(onNil));
-            return vf.val;
         }
 
-        class Pair<T> {
-            final T car;
-            final Pair<T> cdr;
+        // 可选的运行时统计: Instrumented 包一层 Compiler, 不用时走原来的 Compiler, 没有额外开销
+        // 一个 Metrics 对应一次求值 (包括之后的解码, lazy 下解码时才发生的规约也算), 不是线程安全的
+        final class Metrics {
+            long applications; // 求值的 App 个数 (不含 jet)
+            long closures;     // 创建的闭包
+            long frames;       // 闭包调用, 即 β 规约, 每次分配一个 Env frame
+            long lookups;      // 变量查找
+            long hops;         // 查找时沿 Env 链走过的 frame 数
+            int depth;
+            int peakDepth;     // App 嵌套求值的最大深度
+
+            Metrics snapshot() {
+                Metrics m = new Metrics();
+                m.applications = applications;
+                m.closures = closures;
+                m.frames = frames;
+                m.lookups = lookups;
+                m.hops = hops;
+                m.depth = depth;
+                m.peakDepth = peakDepth;
+                return m;
+            }
 
-            Pair(T car, Pair<T> cdr) {
-                this.car = car;
-                this.cdr = cdr;
+            @Override public String toString() {
+                return "applications=" + applications + ", closures=" + closures + ", frames=" + frames +
+                        ", lookups=" + lookups + ", hops=" + hops + ", peakDepth=" + peakDepth;
             }
 
-            int size() {
-                return car == null ? 0 : 1 + cdr.size();
+            // 求值并用 decode 转成 java 值, 统计写进 metrics; 有 listener 时前后各回调一次
+            static <T> T evaluate(Expr expr, boolean jets, boolean lazy, Function<F, T> decode, Metrics metrics) {
+                Object token = LISTENER == null ? null : LISTENER.start();
+                T val = decode.apply(new Instrumented(jets, lazy, jets ? Jets.resolve(expr) : null, metrics).visit(expr, null));
+                if (LISTENER != null) {
+                    LISTENER.finish(token, metrics);
+                }
+                return val;
             }
 
-            List<T> list() {
-                List<T> lst = new ArrayList<>();
-                Pair<T> cur = this;
-                while (cur.car != null) {
-                    lst.add(cur.car);
-                    cur = cur.cdr;
+            // 每次 evaluate 的回调; JFR 事件在单独的 JfrEvaluation.java 里 (要 jdk.jfr, JDK 11 以前不编译), 有就反射加载
+            // 这里只用 Java 8 的 API
+            interface Listener {
+                /*@Nullable*/ Object start();
+                void finish(/*@Nullable*/ Object token, Metrics metrics);
+            }
+
+            final static /*@Nullable*/ Listener LISTENER = listener("xiao.JfrEvaluation");
+            static /*@Nullable*/ Listener listener(String name) {
+                try {
+                    return (Listener) Class.forName(name).getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    return null;
                 }
-                return lst;
             }
 
-            @SafeVarargs
+            static final class Instrumented extends Compiler {
+                final Metrics metrics;
+                Instrumented(boolean jets, boolean lazy, /*@Nullable*/ Map<Expr, F> resolved, Metrics metrics) {
+                    super(jets, lazy, resolved);
+                    this.metrics = metrics;
+                }
+
+                @Override public F visit(Sym s, Env<F> env) {
+                    metrics.lookups++;
+                    for (Env<F> e = env; e != null; e = e.parent) {
+                        metrics.hops++;
+                        if (e.env.containsKey(s)) {
+                            break;
+                        }
+                    }
+                    return super.visit(s, env);
+                }
+                @Override public F visit(App s, Env<F> env) {
+                    if (jet(s) != null) {
+                        return super.visit(s, env);
+                    }
+                    metrics.applications++;
+                    if (++metrics.depth > metrics.peakDepth) {
+                        metrics.peakDepth = metrics.depth;
+                    }
+                    try {
+                        return super.visit(s, env);
+                    } finally {
+                        metrics.depth--;
+                    }
+                }
+                @Override public F visit(Abs s, Env<F> env) {
+                    F f = super.visit(s, env);
+                    if (jet(s) != null) {
+                        return f;
+                    }
+                    metrics.closures++;
+                    return arg -> {
+                        metrics.frames++;
+                        return f.apply(arg);
+                    };
+                }
+            }
+        }
+
+        // jets: 认出 Primitives 里算术和比较的 λ (bootstrap 环境冻结后同一个 Expr 对象), 参数都是 Num 时直接用 int 算
+        // 参数不是 Num, 除数为 0, 溢出, 都退回原来的丘齐编码, 结果与不用 jets 一致
+        class Jets {
+            interface Op {
+                /*@Nullable*/ Object apply(int a, int b);
+            }
+
+            // 丘齐数形状的 λ 求值成 Num, 被当成丘齐数 apply 时才展开成 f 的 n 次调用
+            static final class Num implements F {
+                final static Num[] small = new Num[256];
+                static {
+                    for (int i = 0; i < small.length; i++) {
+                        small[i] = new Num(i);
+                    }
+                }
+                static Num of(int n) { return n < small.length ? small[n] : new Num(n); }
+
+                final int n;
+                private Num(int n) { this.n = n; }
+                @Override public F apply(F f) {
+                    return z -> {
+                        for (int i = 0; i < n; i++) {
+                            z = f.apply(z);
+                        }
+                        return z;
+                    };
+                }
+                @Override public String toString() { return Integer.toString(n); }
+            }
+
+            // 一个 primitive: 参数是 int 时怎么算, 结果是 Integer 或者 Boolean, 算不了 (除 0) 返回 null; expr 是原来的丘齐编码
+            static final class Prim {
+                final Expr expr;
+                final /*@Nullable*/ Op op;
+                final /*@Nullable*/ Function<Integer, Object> unary;
+                Prim(Expr expr, /*@Nullable*/ Op op, /*@Nullable*/ Function<Integer, Object> unary) {
+                    this.expr = expr;
+                    this.op = op;
+                    this.unary = unary;
+                }
+            }
+
+            // jet 算出来的 #t/#f 和退回的丘齐编码是哪个 backend 的闭包
+            // Indexed/cek 用 Indexed 的闭包, cek 直接进到它的 body 里接着跑, if 的分支和退回的丘齐算术不占宿主栈
+            static final class Backend {
+                final static Backend ENV = new Backend(e -> new Compiler(false).visit(e, null));
+                final static Backend INDEXED = new Backend(e -> Indexed.resolve(e, false).eval(null, null));
+                final static Backend FLAT = new Backend(e -> Flat.convert(e, false).eval(null, null));
+
+                final Function<Expr, F> compile;
+                final F TRUE;
+                final F FALSE;
+                final Map<Expr, Jet> jets = new IdentityHashMap<>();
+                Backend(Function<Expr, F> compile) {
+                    this.compile = compile;
+                    this.TRUE = compile.apply(bootEnv().lookup(symOf(Names.TRUE)));
+                    this.FALSE = compile.apply(bootEnv().lookup(symOf(Names.FALSE)));
+                    Map<Prim, Jet> bound = new IdentityHashMap<>();
+                    Table.prims.forEach((e, prim) -> jets.put(e, bound.computeIfAbsent(prim, it -> new Jet(it, this))));
+                }
+                F value(Object r) {
+                    return r instanceof Boolean ? ((Boolean) r ? TRUE : FALSE) : Num.of((Integer) r);
+                }
+            }
+
+            // 绑在一个 backend 上的 jet, 柯里化
+            static final class Jet implements F {
+                final Prim prim;
+                final Backend backend;
+                volatile /*@Nullable*/ F church;
+                Jet(Prim prim, Backend backend) {
+                    this.prim = prim;
+                    this.backend = backend;
+                }
+                F church() {
+                    F f = church;
+                    if (f == null) {
+                        f = church = backend.compile.apply(prim.expr);
+                    }
+                    return f;
+                }
+                // a 已经 force 过; 一元的参数不是 Num 返回 null, 要退回丘齐编码; 二元的先记下第一个参数
+                /*@Nullable*/ F fast(F a) {
+                    if (prim.unary == null) {
+                        return new Partial(this, a);
+                    }
+                    return a instanceof Num ? backend.value(prim.unary.apply(((Num) a).n)) : null;
+                }
+                @Override public F apply(F arg) {
+                    // 算术和比较对参数是严格的, call-by-need 下先 force
+                    F a = arg.force();
+                    F r = fast(a);
+                    return r != null ? r : church().apply(a);
+                }
+            }
+
+            // 二元的 jet 拿到了第一个参数
+            static final class Partial implements F {
+                final Jet jet;
+                final F a;
+                Partial(Jet jet, F a) {
+                    this.jet = jet;
+                    this.a = a;
+                }
+                // 两个参数都是 Num 并且算得出来才有结果, 否则返回 null, 要退回丘齐编码
+                /*@Nullable*/ F fast(F b) {
+                    if (a instanceof Num && b instanceof Num) {
+                        try {
+                            Object r = jet.prim.op.apply(((Num) a).n, ((Num) b).n);
+                            if (r != null) {
+                                return jet.backend.value(r);
+                            }
+                        } catch (ArithmeticException ignored) { }
+                    }
+                    return null;
+                }
+                @Override public F apply(F arg) {
+                    F b = arg.force();
+                    F r = fast(b);
+                    return r != null ? r : jet.church().apply(a).apply(b);
+                }
+            }
+
+            static final class Table {
+                final static Map<Expr, Prim> prims = new IdentityHashMap<>();
+                static {
+                    put(SUM, (a, b) -> Math.addExact(a, b));
+                    put(MUL, (a, b) -> Math.multiplyExact(a, b));
+                    put(POW, (a, b) -> {
+                        int r = 1;
+                        for (int i = 0; i < b; i++) {
+                            r = Math.multiplyExact(r, a);
+                        }
+                        return r;
+                    });
+                    // 饱和减法
+                    put(SUB, (a, b) -> Math.max(a - b, 0));
+                    put(EQ, (a, b) -> a == b);
+                    put(NE, (a, b) -> a != b);
+                    put(LE, (a, b) -> a <= b);
+                    put(GE, (a, b) -> a >= b);
+                    put(LT, (a, b) -> a < b);
+                    put(GT, (a, b) -> a > b);
+                    // 除 0 走丘齐编码里的 S_ERROR
+                    put(MOD, (a, b) -> b == 0 ? null : a % b);
+                    put(DIV, (a, b) -> b == 0 ? null : a / b);
+                    Expr isZero = bootEnv().lookup(symOf(IS_ZERO));
+                    put(IS_ZERO, new Prim(isZero, null, n -> n == 0));
+                }
+                static void put(String name, Op op) {
+                    put(name, new Prim(bootEnv().lookup(symOf(name)), op, null));
+                }
+                // prelude 里绑定的未展开定义也认, 回退时用 bootstrap 环境里闭合的那份
+                static void put(String name, Prim prim) {
+                    prims.put(prim.expr, prim);
+                    prims.put(λ.Compiler.Prelude.defs.get(symOf(name)), prim);
+                }
+            }
+
+            // 没有对应的 jet 返回 null; 结果和退回的丘齐编码默认是 Env 求值的闭包
+            static /*@Nullable*/ F of(Expr e) {
+                return of(e, Backend.ENV);
+            }
+
+            static /*@Nullable*/ F of(Expr e, Backend backend) {
+                if (e instanceof Abs) {
+                    int n = numeral((Abs) e);
+                    if (n >= 0) {
+                        return Num.of(n);
+                    }
+                }
+                return backend.jets.get(e);
+            }
+
+            // 程序里所有的 jet, 认出来的节点不再往下找; 显式栈, 共享的子项只看一次
+            // 环境求值的 Compiler 每次求值前解析一遍, 求值时只查表, Expr 上不记任何东西
+            static Map<Expr, F> resolve(Expr root) {
+                Map<Expr, F> jets = new IdentityHashMap<>();
+                Set<Expr> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+                Deque<Expr> stack = new ArrayDeque<>();
+                stack.push(root);
+                while (!stack.isEmpty()) {
+                    Expr e = stack.pop();
+                    if (!seen.add(e)) {
+                        continue;
+                    }
+                    F jet = of(e);
+                    if (jet != null) {
+                        jets.put(e, jet);
+                    } else if (e instanceof App) {
+                        stack.push(((App) e).arg);
+                        stack.push(((App) e).abs);
+                    } else if (e instanceof Abs) {
+                        stack.push(((Abs) e).body);
+                    }
+                }
+                return jets;
+            }
+
+            // 按 identity 认的 primitive 定义, HashCons 共享时要留住这个节点; 丘齐数按形状认, 不用留
+            static boolean primitive(Expr e) {
+                return Table.prims.containsKey(e);
+            }
+
+            // (λ (f) (λ (z) (f ... (f z)))) 返回 f 的个数, 其他形状返回 -1
+            static int numeral(Abs abs) {
+                if (!(abs.body instanceof Abs)) {
+                    return -1;
+                }
+                Sym f = abs.param;
+                Sym z = ((Abs) abs.body).param;
+                if (f == z) {
+                    return -1;
+                }
+                Expr e = ((Abs) abs.body).body;
+                int n = 0;
+                while (e instanceof App && ((App) e).abs == f) {
+                    e = ((App) e).arg;
+                    n++;
+                }
+                return e == z ? n : -1;
+            }
+        }
+
+        CodeGen<F, Void> indexed = new Indexed(true);
+
+        // 编译期把 Sym 解析成 de Bruijn index (引用处到绑定处之间隔了几层 λ), 运行时沿 Frame 链走 index 步取值
+        // 单参 λ 的 Frame 只有一个槽位, 每次调用只分配一个 Frame, 没有 hash 也没有 Map
+        class Indexed implements CodeGen<F, Void> {
+            final boolean jets;
+            Indexed(boolean jets) { this.jets = jets; }
+
+            @Override public F visit(Sym s, Void v) { return resolve(s, jets).eval(null, null); }
+            @Override public F visit(App s, Void v) { return resolve(s, jets).eval(null, null); }
+            @Override public F visit(Abs s, Void v) { return resolve(s, jets).eval(null, null); }
+
+            // 两遍: 先找出参数被引用到的 λ, 再算 index, 没被引用的参数 (比如 if 生成的 thunk) 不占 Frame
+            // jets 打开时, 认出来的 primitive 和丘齐数编译成常量, 两遍都不再往里走
+            // 都用显式栈, 很长的字面量 (字符串/丘齐数) 不爆宿主栈
+            static Code resolve(Expr expr, boolean jets) {
+                Map<Expr, F> consts = new IdentityHashMap<>();
+                Set<Abs> bound = Collections.newSetFromMap(new IdentityHashMap<>());
+                Deque<Object[]> todo = new ArrayDeque<>();
+                todo.push(new Object[] { expr, null });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    Expr e = (Expr) t[0];
+                    Scope scope = (Scope) t[1];
+                    F jet = jets && !(e instanceof Sym) ? Jets.of(e, Jets.Backend.INDEXED) : null;
+                    if (jet != null) {
+                        consts.put(e, jet);
+                    } else if (e instanceof Sym) {
+                        bound.add(Scope.lookup(scope, (Sym) e).abs);
+                    } else if (e instanceof App) {
+                        todo.push(new Object[] { ((App) e).arg, scope });
+                        todo.push(new Object[] { ((App) e).abs, scope });
+                    } else {
+                        todo.push(new Object[] { ((Abs) e).body, new Scope((Abs) e, scope) });
+                    }
+                }
+
+                // 后序: 子项的 Code 先出来, 放在 done 上
+                Deque<Code> done = new ArrayDeque<>();
+                todo.push(new Object[] { expr, null, false });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    Expr e = (Expr) t[0];
+                    Scope scope = (Scope) t[1];
+                    F jet = consts.get(e);
+                    if ((boolean) t[2]) {
+                        if (e instanceof App) {
+                            Code arg = done.pop();
+                            done.push(new Ap(done.pop(), arg));
+                        } else {
+                            Abs abs = (Abs) e;
+                            done.push(new Lam(abs.param, bound.contains(abs), done.pop()));
+                        }
+                    } else if (jet != null) {
+                        done.push(new Const(jet));
+                    } else if (e instanceof Sym) {
+                        done.push(new Var((Sym) e, Scope.indexOf(scope, (Sym) e)));
+                    } else if (e instanceof App) {
+                        todo.push(new Object[] { e, scope, true });
+                        todo.push(new Object[] { ((App) e).arg, scope, false });
+                        todo.push(new Object[] { ((App) e).abs, scope, false });
+                    } else {
+                        Abs abs = (Abs) e;
+                        todo.push(new Object[] { e, scope, true });
+                        todo.push(new Object[] { abs.body, bound.contains(abs) ? new Scope(abs, scope) : scope, false });
+                    }
+                }
+                return done.pop();
+            }
+
+            // 编译期的作用域, 只用来算 index
+            static class Scope {
+                final Abs abs;
+                final /*@Nullable*/ Scope up;
+                Scope(Abs abs, /*@Nullable*/ Scope up) {
+                    this.abs = abs;
+                    this.up = up;
+                }
+                static Scope lookup(/*@Nullable*/ Scope scope, Sym s) {
+                    for (; scope != null; scope = scope.up) {
+                        if (scope.abs.param == s) {
+                            return scope;
+                        }
+                    }
+                    throw new RuntimeException(s + " not found");
+                }
+                static int indexOf(/*@Nullable*/ Scope scope, Sym s) {
+                    for (int i = 0; scope != null; i++, scope = scope.up) {
+                        if (scope.abs.param == s) {
+                            return i;
+                        }
+                    }
+                    throw new RuntimeException(s + " not found");
+                }
+            }
+
+            // 运行时的环境, 最内层的参数放在 eval 的 arg 里传递, 只有被闭包捕获时才进 Frame
+            // 闭包本身就是它捕获的 Frame, 所以调用不分配任何对象, 只有构造闭包分配
+            abstract static class Frame {
+                final /*@Nullable*/ F val;
+                final /*@Nullable*/ Frame up;
+                Frame(/*@Nullable*/ F val, /*@Nullable*/ Frame up) {
+                    this.val = val;
+                    this.up = up;
+                }
+            }
+
+            abstract static class Code {
+                // 引用到了外面几层 λ 的参数, 0 即 closed term
+                final int free;
+                Code(int free) { this.free = free; }
+                abstract F eval(/*@Nullable*/ F arg, /*@Nullable*/ Frame env);
+            }
+            static class Var extends Code {
+                final Sym sym;
+                final int index;
+                Var(Sym sym, int index) {
+                    super(index + 1);
+                    this.sym = sym;
+                    this.index = index;
+                }
+                @Override F eval(F arg, Frame env) {
+                    if (index == 0) {
+                        return arg;
+                    }
+                    for (int i = index; i > 1; i--) {
+                        env = env.up;
+                    }
+                    return env.val;
+                }
+            }
+            static class Ap extends Code {
+                final Code abs;
+                final Code arg;
+                Ap(Code abs, Code arg) {
+                    super(Math.max(abs.free, arg.free));
+                    this.abs = abs;
+                    this.arg = arg;
+                }
+                @Override F eval(F arg, Frame env) { return abs.eval(arg, env).apply(this.arg.eval(arg, env)); }
+            }
+            static class Const extends Code {
+                final F val;
+                Const(F val) {
+                    super(0);
+                    this.val = val;
+                }
+                @Override F eval(F arg, Frame env) { return val; }
+            }
+            static class Lam extends Code {
+                final Sym param;
+                // 参数没被引用时不占 index
+                final boolean bound;
+                final Code body;
+                // closed 的 λ 与环境无关, 只需要一个闭包
+                final /*@Nullable*/ Closure closed;
+                Lam(Sym param, boolean bound, Code body) {
+                    super(bound ? Math.max(body.free - 1, 0) : body.free);
+                    this.param = param;
+                    this.bound = bound;
+                    this.body = body;
+                    this.closed = free == 0 ? new Closure(this, null, null) : null;
+                }
+                @Override F eval(F arg, Frame env) { return closed == null ? new Closure(this, arg, env) : closed; }
+            }
+
+            static class Closure extends Frame implements F {
+                final Lam lam;
+                Closure(Lam lam, /*@Nullable*/ F val, /*@Nullable*/ Frame up) {
+                    super(val, up);
+                    this.lam = lam;
+                }
+                @Override public F apply(F arg) {
+                    if (lam.bound) {
+                        return lam.body.eval(arg, this);
+                    } else {
+                        return lam.body.eval(val, up);
+                    }
+                }
+            }
+        }
+
+        CodeGen<F, Void> flat = new Flat(true);
+
+        // flat closure: 编译期算出每个 λ 的自由变量, 闭包只把这些值拷进自己的数组, 没有 Env/Frame 链
+        // 闭包不再通过链引用外层所有的绑定, 长时间运行的 letrec 循环建出来的数据结构只留住真正用到的值
+        // 代价是构造闭包时按自由变量个数拷贝; 变量访问是 arg 或者数组下标, 不用走链
+        class Flat implements CodeGen<F, Void> {
+            final boolean jets;
+            Flat(boolean jets) { this.jets = jets; }
+
+            @Override public F visit(Sym s, Void v) { return convert(s, jets).eval(null, null); }
+            @Override public F visit(App s, Void v) { return convert(s, jets).eval(null, null); }
+            @Override public F visit(Abs s, Void v) { return convert(s, jets).eval(null, null); }
+
+            // 两遍, 都是显式栈: 先算每个 λ 的自由变量, 再把变量解析成 参数 / 捕获数组的下标
+            // 第一遍是 Prelude.free 的 escape depth 遍历: escape 为 0 的子项 (App 也算) 再遇到直接跳过, open 的 λ 按节点记下自由变量
+            // 每个还没走完的 λ 一个集合, 走完时把里面不是外层 λ 参数的变量并到外层, 总代价是 n + Σ|fv(λ)|
+            static Code convert(Expr expr, boolean jets) {
+                Map<Abs, List<Sym>> free = new IdentityHashMap<>();
+                Map<Expr, F> consts = new IdentityHashMap<>();
+                Set<Expr> closed = Collections.newSetFromMap(new IdentityHashMap<>());
+                Map<Sym, Deque<Integer>> levels = new HashMap<>();
+                Deque<Set<Sym>> scopes = new ArrayDeque<>();
+                Deque<Object[]> todo = new ArrayDeque<>();
+                Deque<Integer> done = new ArrayDeque<>();
+                todo.push(new Object[] { expr, 0, false });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    Expr e = (Expr) t[0];
+                    int depth = (int) t[1];
+                    if ((boolean) t[2]) {
+                        int escape;
+                        if (e instanceof App) {
+                            escape = Math.max(done.pop(), done.pop());
+                        } else {
+                            levels.get(((Abs) e).param).pop();
+                            int body = done.pop();
+                            escape = body == Integer.MAX_VALUE ? body : Math.max(body - 1, 0);
+                            List<Sym> fv = new ArrayList<>(scopes.pop());
+                            free.put((Abs) e, fv);
+                            for (Sym s : fv) {
+                                capture(scopes, levels, s, depth);
+                            }
+                        }
+                        if (escape == 0) {
+                            closed.add(e);
+                        }
+                        done.push(escape);
+                    } else if (closed.contains(e)) {
+                        done.push(0);
+                    } else if (e instanceof Sym) {
+                        done.push(capture(scopes, levels, (Sym) e, depth));
+                    } else if (jets && (consts.containsKey(e) || jet(consts, e))) {
+                        closed.add(e);
+                        done.push(0);
+                    } else if (e instanceof Abs && free.containsKey(e)) {
+                        // 共享的 open λ: 自由变量已经算过, 按当前的绑定并到外层
+                        int escape = 0;
+                        for (Sym s : free.get(e)) {
+                            escape = Math.max(escape, capture(scopes, levels, s, depth));
+                        }
+                        done.push(escape);
+                    } else if (e instanceof App) {
+                        todo.push(new Object[] { e, depth, true });
+                        todo.push(new Object[] { ((App) e).arg, depth, false });
+                        todo.push(new Object[] { ((App) e).abs, depth, false });
+                    } else {
+                        Abs abs = (Abs) e;
+                        levels.computeIfAbsent(abs.param, k -> new ArrayDeque<>()).push(depth + 1);
+                        scopes.push(new LinkedHashSet<>());
+                        todo.push(new Object[] { e, depth, true });
+                        todo.push(new Object[] { abs.body, depth + 1, false });
+                    }
+                }
+
+                // 第二遍后序建 Code; ctx: 当前所在的 λ, 最外层是 null. λ 的 body 只跟自己有关, 共享的 λ 只建一次 body
+                Map<Abs, Map<Sym, Integer>> slots = new IdentityHashMap<>();
+                Map<Abs, Code> bodies = new IdentityHashMap<>();
+                Deque<Code> codes = new ArrayDeque<>();
+                todo.push(new Object[] { expr, null, false });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    Expr e = (Expr) t[0];
+                    Abs ctx = (Abs) t[1];
+                    if ((boolean) t[2]) {
+                        if (e instanceof App) {
+                            Code arg = codes.pop();
+                            codes.push(new Ap(codes.pop(), arg));
+                        } else {
+                            Code body = codes.pop();
+                            bodies.put((Abs) e, body);
+                            codes.push(lam(free, slots, (Abs) e, ctx, body));
+                        }
+                    } else if (consts.containsKey(e)) {
+                        codes.push(new Const(consts.get(e)));
+                    } else if (e instanceof Sym) {
+                        codes.push(new Var((Sym) e, slot(free, slots, ctx, (Sym) e)));
+                    } else if (e instanceof App) {
+                        todo.push(new Object[] { e, ctx, true });
+                        todo.push(new Object[] { ((App) e).arg, ctx, false });
+                        todo.push(new Object[] { ((App) e).abs, ctx, false });
+                    } else if (bodies.containsKey(e)) {
+                        codes.push(lam(free, slots, (Abs) e, ctx, bodies.get(e)));
+                    } else {
+                        todo.push(new Object[] { e, ctx, true });
+                        todo.push(new Object[] { ((Abs) e).body, e, false });
+                    }
+                }
+                return codes.pop();
+            }
+
+            static boolean jet(Map<Expr, F> consts, Expr e) {
+                F jet = Jets.of(e, Jets.Backend.FLAT);
+                if (jet != null) {
+                    consts.put(e, jet);
+                }
+                return jet != null;
+            }
+
+            // 在 depth 处引用 s: 不是最里层 λ 自己的参数就记成它的自由变量; 返回 escape depth
+            static int capture(Deque<Set<Sym>> scopes, Map<Sym, Deque<Integer>> levels, Sym s, int depth) {
+                Deque<Integer> level = levels.get(s);
+                boolean bound = level != null && !level.isEmpty();
+                if (!scopes.isEmpty() && (!bound || level.peek() < depth)) {
+                    scopes.peek().add(s);
+                }
+                return bound ? depth - level.peek() + 1 : Integer.MAX_VALUE;
+            }
+
+            static Lam lam(Map<Abs, List<Sym>> free, Map<Abs, Map<Sym, Integer>> slots, Abs s, /*@Nullable*/ Abs ctx, Code body) {
+                List<Sym> fv = free.get(s);
+                int[] captures = new int[fv.size()];
+                for (int i = 0; i < captures.length; i++) {
+                    captures[i] = slot(free, slots, ctx, fv.get(i));
+                }
+                return new Lam(s.param, captures, body);
+            }
+
+            // 在 ctx 里 s 的位置: ARG 是 ctx 的参数, 否则是 ctx 捕获数组的下标
+            static int slot(Map<Abs, List<Sym>> free, Map<Abs, Map<Sym, Integer>> slots, /*@Nullable*/ Abs ctx, Sym s) {
+                if (ctx != null) {
+                    if (ctx.param == s) {
+                        return ARG;
+                    }
+                    Integer i = slots.computeIfAbsent(ctx, k -> {
+                        Map<Sym, Integer> index = new HashMap<>();
+                        for (Sym fv : free.get(k)) {
+                            index.put(fv, index.size());
+                        }
+                        return index;
+                    }).get(s);
+                    if (i != null) {
+                        return i;
+                    }
+                }
+                throw new RuntimeException(s + " not found");
+            }
+
+            final static int ARG = -1;
+
+            abstract static class Code {
+                // arg: 当前 λ 的参数; env: 当前闭包捕获的值
+                abstract F eval(/*@Nullable*/ F arg, /*@Nullable*/ F[] env);
+            }
+            static class Var extends Code {
+                final Sym sym;
+                final int slot;
+                Var(Sym sym, int slot) {
+                    this.sym = sym;
+                    this.slot = slot;
+                }
+                @Override F eval(F arg, F[] env) { return slot == ARG ? arg : env[slot]; }
+            }
+            static class Ap extends Code {
+                final Code abs;
+                final Code arg;
+                Ap(Code abs, Code arg) {
+                    this.abs = abs;
+                    this.arg = arg;
+                }
+                @Override F eval(F arg, F[] env) { return abs.eval(arg, env).apply(this.arg.eval(arg, env)); }
+            }
+            static class Const extends Code {
+                final F val;
+                Const(F val) { this.val = val; }
+                @Override F eval(F arg, F[] env) { return val; }
+            }
+            static class Lam extends Code {
+                final Sym param;
+                // 每个自由变量从外层的哪里取: ARG 或者外层捕获数组的下标
+                final int[] captures;
+                final Code body;
+                // closed 的 λ 只需要一个闭包
+                final /*@Nullable*/ Closure closed;
+                Lam(Sym param, int[] captures, Code body) {
+                    this.param = param;
+                    this.captures = captures;
+                    this.body = body;
+                    this.closed = captures.length == 0 ? new Closure(this, new F[0]) : null;
+                }
+                @Override F eval(F arg, F[] env) {
+                    if (closed != null) {
+                        return closed;
+                    }
+                    F[] values = new F[captures.length];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = captures[i] == ARG ? arg : env[captures[i]];
+                    }
+                    return new Closure(this, values);
+                }
+            }
+
+            static final class Closure implements F {
+                final Lam lam;
+                final F[] captured;
+                Closure(Lam lam, F[] captured) {
+                    this.lam = lam;
+                    this.captured = captured;
+                }
+                @Override public F apply(F arg) { return lam.body.eval(arg, captured); }
+            }
+        }
+
+        CodeGen<F, Void> machine = new Machine();
+
+        // CEK 机: 复用 Indexed 解析好的 Code 和 Frame, 但是续延放在堆上的显式栈里, 求值深度只受堆大小限制
+        // 尾调用不增长栈; 只有调用宿主 F (比如 natify 传进来的 succ) 时才会用到宿主栈
+        class Machine implements CodeGen<F, Void> {
+            @Override public F visit(Sym s, Void v) { return run(Indexed.resolve(s, true), null, null); }
+            @Override public F visit(App s, Void v) { return run(Indexed.resolve(s, true), null, null); }
+            @Override public F visit(Abs s, Void v) { return run(Indexed.resolve(s, true), null, null); }
+
+            // 栈上的 apply 续延: [fn, APPLY]; 求参数的续延: [env, arg, code]
+            final static Object APPLY = new Object();
+
+            static F run(Indexed.Code c, /*@Nullable*/ F a, /*@Nullable*/ Indexed.Frame e) {
+                Object[] stack = new Object[64];
+                int sp = 0;
+                F v;
+                for (;;) {
+                    // C: 沿着 App 的函数位置往下, 一直到值
+                    while (c instanceof Indexed.Ap) {
+                        if (sp + 3 > stack.length) {
+                            stack = Arrays.copyOf(stack, stack.length * 2);
+                        }
+                        stack[sp++] = e;
+                        stack[sp++] = a;
+                        stack[sp++] = ((Indexed.Ap) c).arg;
+                        c = ((Indexed.Ap) c).abs;
+                    }
+                    if (c instanceof Indexed.Var || c instanceof Indexed.Const) {
+                        v = c.eval(a, e);
+                    } else {
+                        v = new Closure((Indexed.Lam) c, a, e);
+                    }
+
+                    // K: 把值交给栈顶的续延
+                    for (;;) {
+                        if (sp == 0) {
+                            return v;
+                        }
+                        Object k = stack[--sp];
+                        if (k == APPLY) {
+                            F fn = (F) stack[--sp];
+                            stack[sp] = null;
+                            // jet 算不了的退回丘齐编码: 它是 Indexed 的闭包, 在机器里接着跑
+                            if (fn instanceof Jets.Jet || fn instanceof Jets.Partial) {
+                                v = v.force();
+                                F r = fn instanceof Jets.Jet ? ((Jets.Jet) fn).fast(v) : ((Jets.Partial) fn).fast(v);
+                                if (r != null) {
+                                    v = r;
+                                    continue;
+                                } else if (fn instanceof Jets.Jet) {
+                                    fn = ((Jets.Jet) fn).church();
+                                } else {
+                                    // 先喂第一个参数, 第二个参数当常量等在栈上
+                                    if (sp + 3 > stack.length) {
+                                        stack = Arrays.copyOf(stack, stack.length * 2);
+                                    }
+                                    stack[sp++] = null;
+                                    stack[sp++] = null;
+                                    stack[sp++] = new Indexed.Const(v);
+                                    v = ((Jets.Partial) fn).a;
+                                    fn = ((Jets.Partial) fn).jet.church();
+                                }
+                            }
+                            // Indexed 的闭包 (jet 的 #t/#f 和丘齐编码) 和机器自己的闭包一样进到 body 里
+                            Indexed.Lam lam = fn instanceof Closure ? ((Closure) fn).lam
+                                    : fn instanceof Indexed.Closure ? ((Indexed.Closure) fn).lam : null;
+                            if (lam != null) {
+                                Indexed.Frame frame = (Indexed.Frame) fn;
+                                c = lam.body;
+                                if (lam.bound) {
+                                    a = v;
+                                    e = frame;
+                                } else {
+                                    a = frame.val;
+                                    e = frame.up;
+                                }
+                                break;
+                            } else {
+                                v = fn.apply(v);
+                            }
+                        } else {
+                            c = (Indexed.Code) k;
+                            a = (F) stack[--sp];
+                            e = (Indexed.Frame) stack[--sp];
+                            stack[sp++] = v;
+                            stack[sp++] = APPLY;
+                            break;
+                        }
+                    }
+                }
+            }
+
+            // 宿主调用进来时另起一台机器
+            static class Closure extends Indexed.Frame implements F {
+                final Indexed.Lam lam;
+                Closure(Indexed.Lam lam, /*@Nullable*/ F val, /*@Nullable*/ Indexed.Frame up) {
+                    super(val, up);
+                    this.lam = lam;
+                }
+                @Override public F apply(F arg) {
+                    if (lam.bound) {
+                        return run(lam.body, arg, this);
+                    } else {
+                        return run(lam.body, val, up);
+                    }
+                }
+            }
+        }
+
+        CodeGen<F, Void> optimal = new Optimal(false);
+
+        // Lamping 的最优规约 (带 bracket/croissant 的版本): Expr 翻译成 sharing graph, 按交互规则改写
+        // 同一个 redex 的不同副本只规约一次, 丘齐编码里 (^ m n), pred 之类在环境求值里重复的工作在这里共享
+        // 比如 (zero? (^ 2 20)) 环境求值要展开 2^20 次调用, 这里一百次左右的 β 就够了
+        // 连着的 croissant/bracket 并成一个 LIFT 节点, 别的节点一次穿过整串, 两串相遇一次算完, 省掉大部分 bookkeeping 的交互
+        // 只规约观察点上需要的 redex (沿 principal port 往下找 active pair), Y 展开的递归不会无穷规约
+        // 结果是图上的一个观察点 (Ref), 当成 F 用: apply 宿主的 F 时把它做成原子节点接进图里, 所以 nat/list/string 照常解码
+        // normalize 用 NbE 读回 normal form: 观察点上是 λ 就喂一个变量原子接着规约, 是中性项就拆开各自读回
+        // jets (CodeGen.optimal 不开): 丘齐数是 Num 原子, 算术和比较交给宿主, 递归多的程序 (fizzbuzz) 要开才跑得动, 但算术就不共享了
+        class Optimal implements CodeGen<F, Void> {
+            final boolean jets;
+            Optimal(boolean jets) { this.jets = jets; }
+
+            @Override public F visit(Sym s, Void v) { return new Ref(translate(s, jets)); }
+            @Override public F visit(App s, Void v) { return new Ref(translate(s, jets)); }
+            @Override public F visit(Abs s, Void v) { return new Ref(translate(s, jets)); }
+
+            // 端口 0 是 principal
+            // ROOT: 观察点, 不参与交互; LAM: 0 外面, 1 body, 2 参数; APP: 0 函数, 1 参数, 2 结果
+            // FAN: 0 共享的一侧, 1/2 两个副本; ERA: 擦除
+            // LIFT: 连着的一串 croissant/bracket 并成一个节点, 0 外面, 1 里面, value 是 int[], 外面的在前
+            //   index << 1 是 croissant (穿过的节点 index 比它大就减一), index << 1 | 1 是 bracket (加一)
+            // ATOM: 宿主的值 (F) 或者读回时的变量 (Sym); NEU: 变量的应用 (中性项), 1 函数, 2 参数
+            // OP: 严格的宿主函数, 0 等参数规约成原子, 1 结果
+            // EXPR: 还没翻译的 closed 子项 (Closed), index 是它所在的层
+            final static byte ROOT = 0, LAM = 1, APP = 2, FAN = 3, LIFT = 4, ERA = 5, ATOM = 6, NEU = 7, OP = 8, EXPR = 9;
+            final static int[] ARITY = { 1, 3, 3, 3, 2, 1, 1, 3, 2, 1 };
+
+            static final class Node {
+                final byte kind;
+                final int index;
+                // LIFT 并上相邻的一串时换成更长的 int[], 数组本身不改, 副本可以共用
+                /*@Nullable*/ Object value;
+                // 端口最多 3 个, 直接放字段里, 图大的时候少一半对象
+                /*@Nullable*/ Node to0, to1, to2;
+                byte at0, at1, at2;
+                Node(byte kind, int index, /*@Nullable*/ Object value) {
+                    this.kind = kind;
+                    this.index = index;
+                    this.value = value;
+                }
+                Node(byte kind, int index) { this(kind, index, null); }
+                Node to(int i) { return i == 0 ? to0 : i == 1 ? to1 : to2; }
+                int at(int i) { return i == 0 ? at0 : i == 1 ? at1 : at2; }
+                void set(int i, Node n, int j) {
+                    if (i == 0) {
+                        to0 = n;
+                        at0 = (byte) j;
+                    } else if (i == 1) {
+                        to1 = n;
+                        at1 = (byte) j;
+                    } else {
+                        to2 = n;
+                        at2 = (byte) j;
+                    }
+                }
+                boolean indexed() { return kind >= LAM && kind <= FAN; }
+                boolean control() { return kind == FAN || kind == LIFT; }
+            }
+
+            static void link(Node a, int i, Node b, int j) {
+                a.set(i, b, j);
+                b.set(j, a, i);
+            }
+
+            static Expr normalize(Expr expr) {
+                return readback(translate(expr, false), 0);
+            }
+
+            // 图上的值, 每次用的时候在顶上挂一个 FAN 复制一份出去, 原来的留给下一次用, 已经做过的规约两边共享
+            static final class Ref implements F {
+                final Node root;
+                Ref(Node root) { this.root = root; }
+
+                @Override public F apply(F arg) {
+                    whnf(root, 0);
+                    Node v = root.to(0);
+                    if (v.kind == ATOM && v.value instanceof F) {
+                        return ((F) v.value).apply(arg);
+                    }
+                    if (v.kind != LAM) {
+                        throw new IllegalStateException("not a function");
+                    }
+                    Node app = new Node(APP, v.index), r = new Node(ROOT, 0);
+                    share(this, app, 0);
+                    embed(arg, v.index + 1, app, 1);
+                    link(app, 2, r, 0);
+                    return new Ref(r);
+                }
+
+                @Override public F force() {
+                    whnf(root, 0);
+                    Node v = root.to(0);
+                    return v.kind == ATOM && v.value instanceof F ? ((F) v.value).force() : this;
+                }
+
+                Expr expr() {
+                    whnf(root, 0);
+                    Node r = new Node(ROOT, 0);
+                    share(this, r, 0);
+                    return readback(r, 0);
+                }
+            }
+
+            // ref 顶上 (已经 whnf) 是 LAM_j, 用 FAN_{j-1} 复制, 一份接 (n, p), 一份还给 ref
+            static void share(Ref ref, Node n, int p) {
+                Node v = ref.root.to(0);
+                if (v.kind == ATOM) {
+                    link(new Node(ATOM, 0, v.value), 0, n, p);
+                    return;
+                }
+                Node fan = new Node(FAN, v.index - 1);
+                link(fan, 0, v, ref.root.at(0));
+                link(fan, 1, ref.root, 0);
+                link(fan, 2, n, p);
+            }
+
+            // 宿主的值接到 (n, p) 上, 那里是 level 层
+            // Ref 复制一份接过去, 顶上的 index 和 level 不一样时串 croissant (往下挪) 或者 bracket (往上挪); 其他的做成原子
+            static void embed(F f, int level, Node n, int p) {
+                if (!(f instanceof Ref)) {
+                    link(new Node(ATOM, 0, f), 0, n, p);
+                    return;
+                }
+                Ref ref = (Ref) f;
+                whnf(ref.root, 0);
+                Node v = ref.root.to(0);
+                if (v.kind != LAM) {
+                    share(ref, n, p);
+                    return;
+                }
+                int i = v.index;
+                Node end = new Node(ROOT, 0);
+                share(ref, end, 0);
+                int[] ops = new int[Math.abs(level - i)];
+                for (int k = 0; i != level; k++) {
+                    ops[k] = i < level ? i - 1 << 1 | 1 : i - 1 << 1;
+                    i += i < level ? 1 : -1;
+                }
+                lift(ops, end.to(0), end.at(0), n, p);
+            }
+
+            // [x]n: CRO_n; [λx.M]n: LAM_n, x 的出现接参数端口, 没出现接 ERA
+            // [M N]n: APP_n, N 翻译在 n+1 层, N 的自由变量出盒子时过 BRA_n, M/N 共用的自由变量用 FAN_n 合并
+            // [Y (λf.M)]n: M 翻译在 n+1 层, 根接 FAN_n, 一份经 CRO_n 出去, 一份经 BRA_n 接回 f, 展开一层就是一次 FAN 复制
+            // CRO/BRA 先各建一个只有一个 op 的 LIFT, 翻译完再并成串 (fuse)
+            // 显式栈后序遍历, 每个子项的结果是 { 根端口, 自由变量 -> 端口 }
+            // closed 的子项先不翻译, 做成 EXPR 节点, 用到时再展开
+            static Node translate(Expr expr, boolean jets) {
+                F jet = jets ? Jets.of(expr) : null;
+                if (jet != null) {
+                    return detach(new Node(ATOM, 0, jet));
+                }
+                return translate(expr, jets, 0, closed(expr));
+            }
+
+            static Set<Expr> closed(Expr expr) {
+                Set<Expr> closed = Collections.newSetFromMap(new IdentityHashMap<>());
+                λ.Compiler.Prelude.free(expr, closed);
+                return closed;
+            }
+
+            // 根不查 jet, jet 退回丘齐编码时也用这个翻译
+            static Node translate(Expr expr, boolean jets, int base, Set<Expr> closed) {
+                Deque<Object[]> todo = new ArrayDeque<>();
+                Deque<Object[]> done = new ArrayDeque<>();
+                List<Node> lifts = new ArrayList<>();
+                todo.push(new Object[] { expr, base, false });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    Expr e = (Expr) t[0];
+                    int level = (int) t[1];
+                    F jet = jets && !(boolean) t[2] && e != expr ? Jets.of(e) : null;
+                    if (jet != null) {
+                        done.push(new Object[] { new Node(ATOM, 0, jet), 0, new HashMap<Sym, Object[]>() });
+                    } else if (e != expr && !(boolean) t[2] && closed.contains(e)) {
+                        Node lazy = new Node(EXPR, level, new Closed(e, jets, closed));
+                        done.push(new Object[] { lazy, 0, new HashMap<Sym, Object[]>() });
+                    } else if (e instanceof Sym) {
+                        Node cro = new Node(LIFT, 0, new int[] { level << 1 });
+                        lifts.add(cro);
+                        Map<Sym, Object[]> free = new HashMap<>();
+                        free.put((Sym) e, new Object[] { cro, 0 });
+                        done.push(new Object[] { cro, 1, free });
+                    } else if (!(boolean) t[2]) {
+                        todo.push(new Object[] { e, level, true });
+                        if (fix(e) != null) {
+                            todo.push(new Object[] { fix(e).body, level + 1, false });
+                        } else if (e instanceof App) {
+                            todo.push(new Object[] { ((App) e).arg, level + 1, false });
+                            todo.push(new Object[] { ((App) e).abs, level, false });
+                        } else {
+                            todo.push(new Object[] { ((Abs) e).body, level, false });
+                        }
+                    } else if (fix(e) != null) {
+                        Object[] body = done.pop();
+                        @SuppressWarnings("unchecked") Map<Sym, Object[]> inner = (Map<Sym, Object[]>) body[2];
+                        Object[] self = inner.remove(fix(e).param);
+                        Node fan = new Node(FAN, level), cro = new Node(LIFT, 0, new int[] { level << 1 });
+                        lifts.add(cro);
+                        link(fan, 0, (Node) body[0], (int) body[1]);
+                        link(fan, 1, cro, 0);
+                        if (self == null) {
+                            link(fan, 2, new Node(ERA, 0), 0);
+                        } else {
+                            Object[] bra = bracket(self, level, lifts);
+                            link(fan, 2, (Node) bra[0], (int) bra[1]);
+                        }
+                        Map<Sym, Object[]> free = new HashMap<>();
+                        inner.forEach((x, end) -> free.put(x, bracket(end, level, lifts)));
+                        done.push(new Object[] { cro, 1, free });
+                    } else if (e instanceof Abs) {
+                        Object[] body = done.pop();
+                        @SuppressWarnings("unchecked") Map<Sym, Object[]> free = (Map<Sym, Object[]>) body[2];
+                        Node lam = new Node(LAM, level);
+                        link(lam, 1, (Node) body[0], (int) body[1]);
+                        Object[] x = free.remove(((Abs) e).param);
+                        if (x == null) {
+                            link(lam, 2, new Node(ERA, 0), 0);
+                        } else {
+                            link(lam, 2, (Node) x[0], (int) x[1]);
+                        }
+                        done.push(new Object[] { lam, 0, free });
+                    } else {
+                        Object[] arg = done.pop(), fun = done.pop();
+                        @SuppressWarnings("unchecked") Map<Sym, Object[]> free = (Map<Sym, Object[]>) fun[2];
+                        @SuppressWarnings("unchecked") Map<Sym, Object[]> inner = (Map<Sym, Object[]>) arg[2];
+                        Node app = new Node(APP, level);
+                        link(app, 0, (Node) fun[0], (int) fun[1]);
+                        link(app, 1, (Node) arg[0], (int) arg[1]);
+                        inner.forEach((x, end) -> {
+                            Object[] bra = bracket(end, level, lifts);
+                            Object[] outer = free.get(x);
+                            if (outer == null) {
+                                free.put(x, bra);
+                            } else {
+                                Node fan = new Node(FAN, level);
+                                link(fan, 1, (Node) outer[0], (int) outer[1]);
+                                link(fan, 2, (Node) bra[0], (int) bra[1]);
+                                free.put(x, new Object[] { fan, 0 });
+                            }
+                        });
+                        done.push(new Object[] { app, 2, free });
+                    }
+                }
+                Object[] top = done.pop();
+                @SuppressWarnings("unchecked") Map<Sym, Object[]> free = (Map<Sym, Object[]>) top[2];
+                if (!free.isEmpty()) {
+                    throw new RuntimeException(free.keySet().iterator().next() + " not found");
+                }
+                Node root = new Node(ROOT, 0);
+                link(root, 0, (Node) top[0], (int) top[1]);
+                fuse(lifts);
+                return root;
+            }
+
+            // 自由变量的端点出盒子套一层 BRA_level
+            static Object[] bracket(Object[] end, int level, List<Node> lifts) {
+                Node bra = new Node(LIFT, 0, new int[] { level << 1 | 1 });
+                link(bra, 1, (Node) end[0], (int) end[1]);
+                lifts.add(bra);
+                return new Object[] { bra, 0 };
+            }
+
+            // 翻译完再把连着的 lift 并成一串; 边翻译边并的话, 变量穿过 n 层盒子就要复制 n 次越来越长的数组
+            static void fuse(List<Node> lifts) {
+                for (Node head : lifts) {
+                    if (head.to(0).kind == LIFT && head.at(0) == 1) {
+                        continue;
+                    }
+                    int n = 0;
+                    Node last = head;
+                    for (Node l = head; l.kind == LIFT; l = l.to(1)) {
+                        n++;
+                        last = l;
+                        if (l.at(1) != 0) {
+                            break;
+                        }
+                    }
+                    if (n > 1) {
+                        int[] ops = new int[n];
+                        int i = 0;
+                        for (Node l = head; i < n; l = l.to(1)) {
+                            ops[i++] = ops(l)[0];
+                        }
+                        head.value = ops;
+                        link(head, 1, last.to(1), last.at(1));
+                    }
+                }
+            }
+
+            // (Y (λ (f) M)) 返回 (λ (f) M), 其他返回 null
+            static /*@Nullable*/ Abs fix(Expr e) {
+                if (e instanceof App && ((App) e).arg instanceof Abs) {
+                    Expr y = ((App) e).abs;
+                    if (y == λ.Compiler.Y || y instanceof App && λ.Compiler.Optimizer.same(y, λ.Compiler.Y)) {
+                        return (Abs) ((App) e).arg;
+                    }
+                }
+                return null;
+            }
+
+            // closed 项不引用外面的变量, 在哪一层翻译结果都一样, 穿过 index 比它小的 croissant/bracket 只需要改层数
+            // 复制它不会丢掉共享: normal form 里没有 redex 可共享, 直接整个复制; 有 redex 的要展开, 由 FAN 慢慢复制
+            static final class Closed {
+                final Expr expr;
+                final boolean jets;
+                final Set<Expr> closed;
+                final boolean copy;
+                Closed(Expr expr, boolean jets, Set<Expr> closed) {
+                    this.expr = expr;
+                    this.jets = jets;
+                    this.closed = closed;
+                    this.copy = normal(expr);
+                }
+            }
+
+            static boolean normal(Expr expr) {
+                Deque<Expr> todo = new ArrayDeque<>();
+                todo.push(expr);
+                while (!todo.isEmpty()) {
+                    Expr e = todo.pop();
+                    if (e instanceof App) {
+                        if (((App) e).abs instanceof Abs) {
+                            return false;
+                        }
+                        todo.push(((App) e).arg);
+                        todo.push(((App) e).abs);
+                    } else if (e instanceof Abs) {
+                        todo.push(((Abs) e).body);
+                    }
+                }
+                return true;
+            }
+
+            static void expand(Node lazy) {
+                Closed c = (Closed) lazy.value;
+                Node root = translate(c.expr, c.jets, lazy.index, c.closed);
+                link(root.to(0), root.at(0), lazy.to(0), lazy.at(0));
+            }
+
+            // 从观察点出发: 到了某个节点的辅助端口就去看它的 principal 连着谁, 两边都是 principal 就是要规约的 redex
+            // 观察点对面是 principal 时停下 (λ/原子/中性项)
+            // 从一串 lift 的里面往外走时顺手把前后两段并起来 (β, 抵消之后两段会直接接上)
+            static void whnf(Node obs, int slot) {
+                Deque<Node> path = new ArrayDeque<>();
+                Node n = obs.to(slot);
+                int p = obs.at(slot);
+                for (;;) {
+                    if (p != 0 && n.kind == LIFT && n.at(1) == 0 && n.to(1) == path.peek() && n.to(1).kind == LIFT && n.to(1).to(1) != n) {
+                        Node inner = path.pop();
+                        n.value = concat(ops(n), ops(inner));
+                        link(n, 1, inner.to(1), inner.at(1));
+                    }
+                    if (p != 0) {
+                        path.push(n);
+                        p = n.at(0);
+                        n = n.to(0);
+                    } else if (path.isEmpty() && n.kind == EXPR) {
+                        expand(n);
+                        n = obs.to(slot);
+                        p = obs.at(slot);
+                    } else if (path.isEmpty()) {
+                        return;
+                    } else {
+                        interact(path.pop(), n);
+                        Node top = path.isEmpty() ? obs : path.peek();
+                        int port = path.isEmpty() ? slot : 0;
+                        n = top.to(port);
+                        p = top.at(port);
+                    }
+                }
+            }
+
+            static void interact(Node a, Node b) {
+                if (a.kind > b.kind) {
+                    Node t = a;
+                    a = b;
+                    b = t;
+                }
+                if (b.kind == EXPR) {
+                    Closed c = (Closed) b.value;
+                    int index = a.kind == LIFT ? through(ops(a), b.index) : -1;
+                    if (a.kind == FAN && a.index < b.index && c.copy) {
+                        link(new Node(EXPR, b.index, c), 0, a.to(1), a.at(1));
+                        link(new Node(EXPR, b.index, c), 0, a.to(2), a.at(2));
+                    } else if (index >= 0) {
+                        link(new Node(EXPR, index, c), 0, a.to(1), a.at(1));
+                    } else if (a.kind != ERA) {
+                        // 其他情况展开成图, a 留着, whnf 回头再从上面找 redex
+                        expand(b);
+                    }
+                } else if (a.kind == LAM && b.kind == APP) {
+                    // β: 结果接 body, 参数接变量
+                    link(b.to(2), b.at(2), a.to(1), a.at(1));
+                    link(a.to(2), a.at(2), b.to(1), b.at(1));
+                } else if (a.kind == APP && b.kind == ATOM && b.value instanceof F) {
+                    call(a, (F) b.value);
+                } else if (a.kind == APP && (b.kind == ATOM || b.kind == NEU)) {
+                    Node neu = new Node(NEU, 0);
+                    Node arg = a.to(1), result = a.to(2);
+                    int argAt = a.at(1), resultAt = a.at(2);
+                    link(neu, 0, result, resultAt);
+                    link(neu, 2, arg, argAt);
+                    link(neu, 1, b, 0);
+                } else if (b.kind == OP && (a.kind == LAM || a.kind == ATOM || a.kind == NEU)
+                        && (b.value instanceof Jets.Jet || b.value instanceof Jets.Partial && ((Jets.Partial) b.value).a instanceof Jets.Num)) {
+                    jet(b, a);
+                } else if (b.kind == OP && (a.kind == LAM || a.kind == ATOM && a.value instanceof F)) {
+                    F arg = a.kind == LAM ? new Ref(detach(a)) : (F) a.value;
+                    embed(((F) b.value).apply(arg), b.index, b.to(1), b.at(1));
+                } else if (a.kind == ERA || b.kind == ERA) {
+                    erase(a.kind == ERA ? b : a);
+                } else if (a.kind == FAN && b.kind == FAN && a.index == b.index) {
+                    // 同 index 抵消
+                    link(a.to(1), a.at(1), b.to(1), b.at(1));
+                    link(a.to(2), a.at(2), b.to(2), b.at(2));
+                } else if (a.kind == LIFT && b.kind == LIFT) {
+                    meet(a, b);
+                } else if (a.kind == LIFT || b.kind == LIFT) {
+                    pass(a.kind == LIFT ? a : b, a.kind == LIFT ? b : a);
+                } else if (a.control() || b.control()) {
+                    commute(a, b);
+                } else {
+                    throw new IllegalStateException(a.kind + " meets " + b.kind);
+                }
+            }
+
+            // 宿主函数是严格的: 换成 OP, 参数在图里规约成原子或者 λ 再调用
+            // 不能直接把参数的 Ref 交出去: APP 可能在 FAN 共享的区域里, 宿主拿到的参数两份副本都要用, 图里的 FAN 还会沿着参数过来
+            // OP 和 APP 一样参与交互, FAN 过来就复制 OP, 共享照常
+            static void call(Node app, F f) {
+                if (f instanceof Jets.Num) {
+                    // 丘齐数当函数用: 展开成 f 的 n 次调用
+                    Node root = translate(λ.Compiler.churchNumeral(((Jets.Num) f).n), true, app.index, Collections.emptySet());
+                    link(app, 0, root.to(0), root.at(0));
+                    return;
+                }
+                Node op = new Node(OP, app.index, f);
+                Node arg = app.to(1), result = app.to(2);
+                int argAt = app.at(1), resultAt = app.at(2);
+                link(op, 0, arg, argAt);
+                link(op, 1, result, resultAt);
+            }
+
+            // jet 只在参数是 Num 时由宿主算, 结果是 Num 或者等第二个参数的 Partial; 布尔值换成丘齐编码接回图里
+            // 参数不是 Num 或者算不出来 (除 0) 就退回 jet 的丘齐编码, 在图里接着规约
+            // 不把图里的值交给宿主: 宿主返回的参数会被接到别的层上, 和它的自由变量对不上
+            static void jet(Node op, Node arg) {
+                Object f = op.value;
+                Object r = null;
+                if (arg.kind == ATOM && arg.value instanceof Jets.Num) {
+                    Jets.Num n = (Jets.Num) arg.value;
+                    if (f instanceof Jets.Partial) {
+                        Jets.Partial p = (Jets.Partial) f;
+                        try {
+                            r = p.jet.prim.op.apply(((Jets.Num) p.a).n, n.n);
+                        } catch (ArithmeticException ignored) { }
+                    } else if (((Jets.Jet) f).prim.unary != null) {
+                        r = ((Jets.Jet) f).prim.unary.apply(n.n);
+                    } else {
+                        r = new Jets.Partial((Jets.Jet) f, n);
+                    }
+                }
+                if (r instanceof Boolean) {
+                    Expr bool = bootEnv().lookup(symOf((Boolean) r ? Names.TRUE : Names.FALSE));
+                    Node root = translate(bool, true, op.index, closed(bool));
+                    link(root.to(0), root.at(0), op.to(1), op.at(1));
+                } else if (r != null) {
+                    link(new Node(ATOM, 0, r instanceof Integer ? Jets.Num.of((Integer) r) : r), 0, op.to(1), op.at(1));
+                } else {
+                    Expr e = f instanceof Jets.Partial
+                            ? new App(((Jets.Partial) f).jet.prim.expr, λ.Compiler.churchNumeral(((Jets.Num) ((Jets.Partial) f).a).n))
+                            : ((Jets.Jet) f).prim.expr;
+                    Node app = new Node(APP, op.index), root = translate(e, true, op.index, closed(e));
+                    link(app, 0, root.to(0), root.at(0));
+                    link(app, 1, arg, 0);
+                    link(app, 2, op.to(1), op.at(1));
+                }
+            }
+
+            // 把 principal 朝外的节点摘下来挂到新的观察点上
+            static Node detach(Node v) {
+                Node root = new Node(ROOT, 0);
+                link(root, 0, v, 0);
+                return root;
+            }
+
+            static void erase(Node a) {
+                for (int i = 1; i < ARITY[a.kind]; i++) {
+                    if (a.to(i) != a) {
+                        link(new Node(ERA, 0), 0, a.to(i), a.at(i));
+                    }
+                }
+            }
+
+            // FAN 和别的节点互相复制穿过, index 不变
+            static void commute(Node a, Node b) {
+                if (a.indexed() && b.indexed() && a.index == b.index) {
+                    throw new IllegalStateException(a.kind + " meets " + b.kind + " at " + a.index);
+                }
+                int am = ARITY[a.kind], bm = ARITY[b.kind];
+                Node[] bs = new Node[am], as = new Node[bm];
+                for (int k = 1; k < am; k++) bs[k] = new Node(b.kind, b.index, b.value);
+                for (int l = 1; l < bm; l++) as[l] = new Node(a.kind, a.index, a.value);
+                for (int k = 1; k < am; k++) {
+                    Node n = a.to(k);
+                    int p = a.at(k);
+                    if (n == b) {
+                        link(bs[k], 0, as[p], 0);
+                    } else if (n == a) {
+                        link(bs[k], 0, bs[p], 0);
+                    } else {
+                        link(bs[k], 0, n, p);
+                    }
+                }
+                for (int l = 1; l < bm; l++) {
+                    Node n = b.to(l);
+                    int p = b.at(l);
+                    if (n == b) {
+                        link(as[l], 0, as[p], 0);
+                    } else if (n != a) {
+                        link(as[l], 0, n, p);
+                    }
+                }
+                for (int k = 1; k < am; k++) {
+                    for (int l = 1; l < bm; l++) {
+                        link(bs[k], l, as[l], k);
+                    }
+                }
+            }
+
+            static int[] ops(Node lift) {
+                return (int[]) lift.value;
+            }
+
+            static int[] concat(int[] a, int[] b) {
+                int[] c = Arrays.copyOf(a, a.length + b.length);
+                System.arraycopy(b, 0, c, a.length, b.length);
+                return c;
+            }
+
+            // croissant -1, bracket +1
+            static int shift(int op) {
+                return (op & 1) * 2 - 1;
+            }
+
+            // index 层的节点从外往里穿过整串后的 index; 碰到 index 不比它小的 (EXPR 要展开) 返回 -1
+            static int through(int[] ops, int index) {
+                for (int op : ops) {
+                    if (op >> 1 >= index) {
+                        return -1;
+                    }
+                    index += shift(op);
+                }
+                return index;
+            }
+
+            // (outer, op) 和 (inner, ip) 之间接一串 lift, principal 朝 outer; 两头已经是 lift 就并进去, 不新建节点
+            // 只往活着的节点里并, 不删节点, whnf 路径上记着的节点都还有效
+            static void lift(int[] ops, Node outer, int op, Node inner, int ip) {
+                if (ops.length == 0) {
+                    link(outer, op, inner, ip);
+                } else if (inner.kind == LIFT && ip == 0 && !(outer.kind == LIFT && op == 1)) {
+                    inner.value = concat(ops, ops(inner));
+                    link(inner, 0, outer, op);
+                } else {
+                    link(chain(ops, outer, op), 1, inner, ip);
+                }
+            }
+
+            // 从 (n, p) 往里接一串 lift, 返回最里面那个节点 (端口 1 还空着)
+            static Node chain(int[] ops, Node n, int p) {
+                if (n.kind == LIFT && p == 1) {
+                    n.value = concat(ops(n), ops);
+                    return n;
+                }
+                Node l = new Node(LIFT, 0, ops);
+                link(l, 0, n, p);
+                return l;
+            }
+
+            // x 一次穿过整串 lift: x 的 index 逐个按 croissant/bracket 改, 辅助端口上各接一份同样的串
+            // x 不是 lift, 穿过它的 croissant/bracket index 都不变, 副本共用一个数组
+            static void pass(Node l, Node x) {
+                int[] ops = ops(l);
+                int index = x.index;
+                if (x.indexed()) {
+                    for (int op : ops) {
+                        if (op >> 1 == index) {
+                            throw new IllegalStateException(x.kind + " meets " + LIFT + " at " + index);
+                        } else if (op >> 1 < index) {
+                            index += shift(op);
+                        }
+                    }
+                }
+                Node y = new Node(x.kind, index, x.value);
+                if (l.to(1) != x) {
+                    link(y, 0, l.to(1), l.at(1));
+                }
+                for (int k = 1; k < ARITY[x.kind]; k++) {
+                    Node n = x.to(k);
+                    int p = x.at(k);
+                    if (n == l) {
+                        lift(ops, y, 0, y, k);
+                    } else if (n == x && k < p) {
+                        Node c = new Node(LIFT, 0, ops), d = new Node(LIFT, 0, ops);
+                        link(c, 0, d, 0);
+                        link(c, 1, y, k);
+                        link(d, 1, y, p);
+                    } else if (n != x) {
+                        lift(ops, n, p, y, k);
+                    }
+                }
+            }
+
+            // 两串面对面: 按原来一个个节点交互的结果算, c 的每一个依次往 d 里走
+            // 同 index 同类抵消, 否则 index 小的不变, 大的按小的加减一; c 剩下的接到 d 里面那头, d 剩下的接到 c 里面那头, 两串辅助端口相连
+            static void meet(Node c, Node d) {
+                if (c.to(1) == d) {
+                    return;
+                }
+                int[] cs = ops(c), ds = ops(d).clone(), out = new int[cs.length];
+                int n = 0, m = ds.length;
+                for (int x : cs) {
+                    boolean alive = true;
+                    for (int t = 0; t < m && alive; t++) {
+                        int y = ds[t];
+                        if (x >> 1 == y >> 1) {
+                            if (x != y) {
+                                throw new IllegalStateException("croissant meets bracket at " + (x >> 1));
+                            }
+                            System.arraycopy(ds, t + 1, ds, t, --m - t);
+                            alive = false;
+                        } else if (x >> 1 < y >> 1) {
+                            ds[t] = y + 2 * shift(x);
+                        } else {
+                            x += 2 * shift(y);
+                        }
+                    }
+                    if (alive) {
+                        out[n++] = x;
+                    }
+                }
+                int[] co = Arrays.copyOf(out, n), dr = Arrays.copyOf(ds, m);
+                if (dr.length == 0) {
+                    lift(co, d.to(1), d.at(1), c.to(1), c.at(1));
+                } else if (co.length == 0) {
+                    lift(dr, c.to(1), c.at(1), d.to(1), d.at(1));
+                } else {
+                    Node nd = d.to(1);
+                    int pd = d.at(1);
+                    lift(co, nd, pd, chain(dr, c.to(1), c.at(1)), 1);
+                }
+            }
+
+            // 显式栈读回, λ 的参数按深度命名
+            static Expr readback(Node obs, int slot) {
+                final Object APP_DONE = new Object();
+                Deque<Object[]> todo = new ArrayDeque<>();
+                Deque<Expr> done = new ArrayDeque<>();
+                todo.push(new Object[] { obs, slot, 0 });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    if (t[0] == APP_DONE) {
+                        Expr arg = done.pop(), fun = done.pop();
+                        done.push(new App(fun, arg));
+                        continue;
+                    } else if (t[0] instanceof Sym) {
+                        done.push(new Abs((Sym) t[0], done.pop()));
+                        continue;
+                    }
+                    Node o = (Node) t[0];
+                    int s = (int) t[1], depth = (int) t[2];
+                    whnf(o, s);
+                    Node v = o.to(s);
+                    if (v.kind == LAM) {
+                        Sym x = symOf("x" + (depth + 1));
+                        Node root = new Node(ROOT, 0), app = new Node(APP, v.index);
+                        link(app, 0, v, 0);
+                        link(app, 1, new Node(ATOM, 0, x), 0);
+                        link(app, 2, root, 0);
+                        todo.push(new Object[] { x });
+                        todo.push(new Object[] { root, 0, depth + 1 });
+                    } else if (v.kind == ATOM && v.value instanceof Sym) {
+                        done.push((Sym) v.value);
+                    } else if (v.kind == NEU) {
+                        todo.push(new Object[] { APP_DONE });
+                        todo.push(new Object[] { v, 2, depth });
+                        todo.push(new Object[] { v, 1, depth });
+                    } else {
+                        throw new IllegalStateException("can not read back " + v.kind);
+                    }
+                }
+                return done.pop();
+            }
+        }
+
+        CodeGen<F, Void> bytecode = new Bytecode();
+
+        // 每个 λ 生成一个实现 F 的 class: 捕获的自由变量是 final 字段, apply 就是编译好的函数体, JIT 看到的是直线代码
+        // 结构相同的 λ 共用一个 class; 每次编译一个 ClassLoader, 闭包都不可达之后这批 class 一起卸载
+        // 函数体没有分支, 不需要 StackMapTable, 所以直接手写 class 文件, 不依赖 asm
+        class Bytecode implements CodeGen<F, Void> {
+            @Override public F visit(Sym s, Void v) { return load(s); }
+            @Override public F visit(App s, Void v) { return load(s); }
+            @Override public F visit(Abs s, Void v) { return load(s); }
+
+            final static String F_TYPE = F.class.getName().replace('.', '/');
+            final static String F_DESC = "L" + F_TYPE + ";";
+            final static String APPLY_DESC = "(Ljava/lang/Object;)Ljava/lang/Object;";
+            final static String CLASS_PREFIX = "xiao/λ$Bytecode$Lambda";
+
+            static F load(Expr expr) {
+                // 顶层不是 λ 的话包一层 (λ (_) expr) 再调用
+                Abs main = expr instanceof Abs ? (Abs) expr : new Abs(symOf("_"), expr);
+                Gen gen = new Gen();
+                List<Sym> free = gen.frees.get(gen.analyze(main));
+                if (!free.isEmpty()) {
+                    throw new RuntimeException(free.get(0) + " not found");
+                }
+                String name = gen.classOf(main);
+                try {
+                    F f = (F) gen.loader.loadClass(name.replace('/', '.')).getConstructor().newInstance();
+                    return expr instanceof Abs ? f : f.apply(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            static class Loader extends ClassLoader {
+                final Map<String, byte[]> classes = new HashMap<>();
+                Loader() { super(F.class.getClassLoader()); }
+                @Override protected Class<?> findClass(String name) throws ClassNotFoundException {
+                    byte[] bytes = classes.remove(name);
+                    if (bytes == null) {
+                        throw new ClassNotFoundException(name);
+                    }
+                    return defineClass(name, bytes, 0, bytes.length);
+                }
+            }
+
+            static class Gen {
+                final Loader loader = new Loader();
+                // 结构相同 (名字也相同) 的节点共用一个 id, 一个 λ 的 id 对应一个 class
+                final Map<List<Object>, Integer> ids = new HashMap<>();
+                final Map<Expr, Integer> idOf = new IdentityHashMap<>();
+                // id -> 自由变量, 按第一次出现的顺序, 即构造函数参数和字段的顺序
+                final List<List<Sym>> frees = new ArrayList<>();
+                final Map<Integer, String> classes = new HashMap<>();
+
+                int analyze(Expr e) {
+                    Integer id = idOf.get(e);
+                    if (id != null) {
+                        return id;
+                    }
+                    List<Object> key;
+                    if (e instanceof Sym) {
+                        key = Collections.singletonList(e);
+                    } else if (e instanceof App) {
+                        key = Arrays.asList("@", analyze(((App) e).abs), analyze(((App) e).arg));
+                    } else {
+                        key = Arrays.asList(LAMBDA, ((Abs) e).param, analyze(((Abs) e).body));
+                    }
+                    id = ids.get(key);
+                    if (id == null) {
+                        id = frees.size();
+                        ids.put(key, id);
+                        frees.add(free(e));
+                    }
+                    idOf.put(e, id);
+                    return id;
+                }
+
+                List<Sym> free(Expr e) {
+                    if (e instanceof Sym) {
+                        return Collections.singletonList((Sym) e);
+                    } else if (e instanceof App) {
+                        List<Sym> free = new ArrayList<>(frees.get(idOf.get(((App) e).abs)));
+                        for (Sym s : frees.get(idOf.get(((App) e).arg))) {
+                            if (!free.contains(s)) {
+                                free.add(s);
+                            }
+                        }
+                        return free;
+                    } else {
+                        List<Sym> free = new ArrayList<>(frees.get(idOf.get(((Abs) e).body)));
+                        free.remove(((Abs) e).param);
+                        return free;
+                    }
+                }
+
+                String classOf(Abs abs) {
+                    int id = analyze(abs);
+                    String name = classes.get(id);
+                    if (name == null) {
+                        name = CLASS_PREFIX + id;
+                        classes.put(id, name);
+                        loader.classes.put(name.replace('/', '.'), emit(name, abs, frees.get(id)));
+                    }
+                    return name;
+                }
+
+                static String initDesc(int captured) {
+                    StringBuilder sb = new StringBuilder("(");
+                    for (int i = 0; i < captured; i++) {
+                        sb.append(F_DESC);
+                    }
+                    return sb.append(")V").toString();
+                }
+
+                // public final class $name implements F {
+                //     final F c0, c1 ...;
+                //     public $name(F c0, F c1 ...) { this.c0 = c0; ... }
+                //     public Object apply(Object $param) { $body }
+                // }
+                byte[] emit(String name, Abs abs, List<Sym> captured) {
+                    if (captured.size() > 254) {
+                        throw new IllegalStateException("too many free variables: " + captured.size());
+                    }
+                    ClassFile cf = new ClassFile();
+                    int thisClass = cf.clazz(name);
+                    int superClass = cf.clazz("java/lang/Object");
+                    int iface = cf.clazz(F_TYPE);
+
+                    Method init = new Method(1 + captured.size());
+                    init.op(0x2a, 1); // aload_0
+                    init.op(0xb7, -1).u2(cf.member(10, "java/lang/Object", "<init>", "()V")); // invokespecial
+                    for (int i = 0; i < captured.size(); i++) {
+                        init.op(0x2a, 1); // aload_0
+                        init.op(0x19, 1).u1(i + 1); // aload
+                        init.op(0xb5, -2).u2(cf.member(9, name, "c" + i, F_DESC)); // putfield
+                    }
+                    init.op(0xb1, 0); // return
+
+                    Method apply = new Method(2);
+                    body(abs.body, abs, captured, name, cf, apply);
+                    apply.op(0xb0, -1); // areturn
+
+                    Bytes fields = new Bytes();
+                    for (int i = 0; i < captured.size(); i++) {
+                        fields.u2(0x0010).u2(cf.utf8("c" + i)).u2(cf.utf8(F_DESC)).u2(0); // ACC_FINAL
+                    }
+                    Bytes methods = new Bytes();
+                    init.writeTo(methods, cf, cf.utf8("<init>"), cf.utf8(initDesc(captured.size())));
+                    apply.writeTo(methods, cf, cf.utf8("apply"), cf.utf8(APPLY_DESC));
+
+                    Bytes out = new Bytes();
+                    out.u4(0xCAFEBABE).u2(0).u2(52);
+                    out.u2(cf.size).bytes(cf.pool);
+                    out.u2(0x0001 | 0x0010 | 0x0020); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+                    out.u2(thisClass).u2(superClass);
+                    out.u2(1).u2(iface);
+                    out.u2(captured.size()).bytes(fields);
+                    out.u2(2).bytes(methods);
+                    out.u2(0);
+                    return out.toByteArray();
+                }
+
+                void body(Expr e, Abs self, List<Sym> captured, String name, ClassFile cf, Method m) {
+                    if (e instanceof Sym) {
+                        load((Sym) e, self, captured, name, cf, m);
+                    } else if (e instanceof App) {
+                        body(((App) e).abs, self, captured, name, cf, m);
+                        body(((App) e).arg, self, captured, name, cf, m);
+                        // invokeinterface Function.apply
+                        m.op(0xb9, -1).u2(cf.member(11, "java/util/function/Function", "apply", APPLY_DESC)).u1(2).u1(0);
+                    } else {
+                        Abs abs = (Abs) e;
+                        String k = classOf(abs);
+                        List<Sym> free = frees.get(idOf.get(abs));
+                        m.op(0xbb, 1).u2(cf.clazz(k)); // new
+                        m.op(0x59, 1); // dup
+                        for (Sym s : free) {
+                            load(s, self, captured, name, cf, m);
+                        }
+                        m.op(0xb7, -1 - free.size()).u2(cf.member(10, k, "<init>", initDesc(free.size()))); // invokespecial
+                    }
+                }
+
+                void load(Sym s, Abs self, List<Sym> captured, String name, ClassFile cf, Method m) {
+                    if (s == self.param) {
+                        m.op(0x2b, 1); // aload_1
+                    } else {
+                        m.op(0x2a, 1); // aload_0
+                        m.op(0xb4, 0).u2(cf.member(9, name, "c" + captured.indexOf(s), F_DESC)); // getfield
+                    }
+                }
+            }
+
+            static class Bytes extends ByteArrayOutputStream {
+                Bytes u1(int b) { write(b); return this; }
+                Bytes u2(int s) { write(s >>> 8); write(s); return this; }
+                Bytes u4(int i) { u2(i >>> 16); return u2(i); }
+                Bytes bytes(Bytes b) { write(b.buf, 0, b.count); return this; }
+            }
+
+            // 常量池
+            static class ClassFile {
+                final Bytes pool = new Bytes();
+                final Map<String, Integer> entries = new HashMap<>();
+                int size = 1;
+
+                int utf8(String s) {
+                    Integer idx = entries.get("U" + s);
+                    if (idx == null) {
+                        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                        pool.u1(1).u2(bytes.length).write(bytes, 0, bytes.length);
+                        idx = add("U" + s);
+                    }
+                    return idx;
+                }
+                int clazz(String internalName) {
+                    Integer idx = entries.get("C" + internalName);
+                    if (idx == null) {
+                        int n = utf8(internalName);
+                        pool.u1(7).u2(n);
+                        idx = add("C" + internalName);
+                    }
+                    return idx;
+                }
+                // tag 9: Fieldref, 10: Methodref, 11: InterfaceMethodref
+                int member(int tag, String owner, String name, String desc) {
+                    String key = tag + owner + "." + name + ":" + desc;
+                    Integer idx = entries.get(key);
+                    if (idx == null) {
+                        int c = clazz(owner);
+                        Integer nt = entries.get("N" + name + ":" + desc);
+                        if (nt == null) {
+                            int n = utf8(name);
+                            int d = utf8(desc);
+                            pool.u1(12).u2(n).u2(d);
+                            nt = add("N" + name + ":" + desc);
+                        }
+                        pool.u1(tag).u2(c).u2(nt);
+                        idx = add(key);
+                    }
+                    return idx;
+                }
+                int add(String key) {
+                    entries.put(key, size);
+                    return size++;
+                }
+            }
+
+            static class Method {
+                final Bytes code = new Bytes();
+                final int maxLocals;
+                int stack = 0;
+                int maxStack = 0;
+                Method(int maxLocals) { this.maxLocals = maxLocals; }
+                Bytes op(int opcode, int stackDelta) {
+                    stack += stackDelta;
+                    maxStack = Math.max(maxStack, stack);
+                    return code.u1(opcode);
+                }
+                void writeTo(Bytes out, ClassFile cf, int name, int desc) {
+                    if (code.size() > 0xFFFF || maxStack > 0xFFFF) {
+                        throw new IllegalStateException("λ body too large for one method");
+                    }
+                    out.u2(0x0001).u2(name).u2(desc).u2(1); // ACC_PUBLIC, 1 attribute
+                    out.u2(cf.utf8("Code")).u4(12 + code.size());
+                    out.u2(maxStack).u2(maxLocals).u4(code.size()).bytes(code);
+                    out.u2(0).u2(0); // exception table, attributes
+                }
+            }
+        }
+
+
+        F True = f -> f;
+        F False = f -> f;
+
+        // 丘齐数的 f: 加一, z 是 Num 0; 结果是 f 套了几层, 和 f 被调用几次无关
+        F inc = x -> {
+            F n = x.force();
+            if (!(n instanceof Jets.Num)) {
+                throw new IllegalStateException("not a church numeral");
+            }
+            return Jets.Num.of(((Jets.Num) n).n + 1);
+        };
+
+        static int natify(F churchNumeral) {
+            F n = churchNumeral.force();
+            if (!(n instanceof Jets.Num)) {
+                n = n.apply(inc).apply(Jets.Num.of(0)).force();
+            }
+            if (!(n instanceof Jets.Num)) {
+                throw new IllegalStateException("not a church numeral");
+            }
+            return ((Jets.Num) n).n;
+        }
+
+        static boolean boolify(F churchBoolean) {
+            F f = churchBoolean.apply(a -> True).apply(a -> False).force();
+            if (f == True) {
+                return true;
+            } else if (f == False) {
+                return false;
+            } else {
+                throw new IllegalStateException();
+            }
+        }
+
+        // 按字节解码, 同 US_ASCII: 大于 127 的是 \uFFFD
+        static String stringify(F churchStr) {
+            StringBuilder buf = new StringBuilder();
+            walk(churchStr, car -> {
+                int b = natify(car) & 0xFF;
+                buf.append(b < 0x80 ? (char) b : '\uFFFD');
+            });
+            return buf.toString();
+        }
+
+        static int[] natsOf(F churchList) {
+            IntStream.Builder nats = IntStream.builder();
+            walk(churchList, car -> nats.add(natify(car)));
+            return nats.build().toArray();
+        }
+
+        static <T> List<T> listOf(UnChurchification<T> unChurch, F churchList) {
+            List<T> lst = new ArrayList<>();
+            walk(churchList, car -> lst.add(unChurch.unChurchify(car)));
+            return lst;
+        }
+
+        static <T> Pair<T> listify(UnChurchification<T> unChurch, F churchList) {
+            List<T> lst = listOf(unChurch, churchList);
+            Pair<T> pair = new Pair<>(null, null);
+            for (int i = lst.size() - 1; i >= 0; i--) {
+                pair = new Pair<>(lst.get(i), pair);
+            }
+            return pair;
+        }
+
+        static void walk(F churchList, Consumer<F> eachCar) {
+            Cursor cursor = new Cursor(churchList);
+            while (cursor.advance()) {
+                eachCar.accept(cursor.car);
+            }
+        }
+
+        // 按需解码, 每次只 force 下一个 cons; 只持有当前的 cdr, 前面的 cons 可以回收 (调用方不再持有表头的话)
+        // 配合 CodeGen.javaLazy 可以遍历无限长的 list
+        static <T> Iterator<T> iteratorOf(UnChurchification<T> unChurch, F churchList) {
+            Cursor cursor = new Cursor(churchList);
+            return new Iterator<T>() {
+                /*@Nullable*/ Boolean hasNext;
+                @Override public boolean hasNext() {
+                    if (hasNext == null) {
+                        hasNext = cursor.advance();
+                    }
+                    return hasNext;
+                }
+                @Override public T next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    hasNext = null;
+                    return unChurch.unChurchify(cursor.car);
+                }
+            };
+        }
+
+        static <T> Stream<T> streamOf(UnChurchification<T> unChurch, F churchList) {
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iteratorOf(unChurch, churchList), Spliterator.ORDERED), false);
+        }
+
+        // 逐个取出丘齐 list 的元素 (还是丘齐编码): 每次 (lst on_cons on_nil), on_cons 记下 car 和 cdr
+        // 循环代替递归, 常量栈; 一个 Cursor 只建一个 on_cons, 每个元素不再分配对象
+        final class Cursor implements F {
+            final F cons = f -> f;
+            final F nil = f -> f;
+            final F onCdr = cdr -> {
+                this.cdr = cdr;
+                return cons;
+            };
+            final F onNil = ignore -> nil;
+            /*@Nullable*/ F lst;
+            /*@Nullable*/ F car;
+            /*@Nullable*/ F cdr;
+            Cursor(F lst) { this.lst = lst; }
+
+            // on_cons
+            @Override public F apply(F car) {
+                this.car = car;
+                return onCdr;
+            }
+
+            // 取下一个元素放到 car, 没有了返回 false
+            boolean advance() {
+                if (lst == null) {
+                    return false;
+                }
+                F r = lst.apply(this).apply(onNil).force();
+                if (r == nil) {
+                    lst = car = cdr = null;
+                    return false;
+                } else if (r != cons) {
+                    throw new IllegalStateException("not a church list");
+                }
+                lst = cdr;
+                return true;
+            }
+        }
+
+        class Pair<T> {
+            final T car;
+            final Pair<T> cdr;
+
+            Pair(T car, Pair<T> cdr) {
+                this.car = car;
+                this.cdr = cdr;
+            }
+
+            int size() {
+                int n = 0;
+                for (Pair<T> cur = this; cur.car != null; cur = cur.cdr) {
+                    n++;
+                }
+                return n;
+            }
+
+            List<T> list() {
+                List<T> lst = new ArrayList<>();
+                Pair<T> cur = this;
+                while (cur.car != null) {
+                    lst.add(cur.car);
+                    cur = cur.cdr;
+                }
+                return lst;
+            }
+
+            @SafeVarargs
             static <T> Pair<T> of(T ...els) {
                 int sz = els.length;
                 if (sz == 0) {
@@ -678,22 +4291,45 @@ public interface λ {
                 }
             }
 
+            // 下面都是循环, 长 list 不爆栈; hashCode 的值同 Objects.hash(car, cdr)
             @Override public boolean equals(Object o) {
-                if (this == o) return true;
-                if (o == null || getClass() != o.getClass()) return false;
-                return Objects.equals(car, ((Pair<?>) o).car) && Objects.equals(cdr, ((Pair<?>) o).cdr);
+                Object a = this, b = o;
+                while (a != b) {
+                    if (a == null || b == null || a.getClass() != b.getClass()) return false;
+                    Pair<?> p = (Pair<?>) a, q = (Pair<?>) b;
+                    if (!Objects.equals(p.car, q.car)) return false;
+                    a = p.cdr;
+                    b = q.cdr;
+                }
+                return true;
             }
 
             @Override public int hashCode() {
-                return Objects.hash(car, cdr);
+                List<T> cars = new ArrayList<>();
+                for (Pair<T> cur = this; cur != null; cur = cur.cdr) {
+                    cars.add(cur.car);
+                }
+                int h = 0;
+                for (int i = cars.size() - 1; i >= 0; i--) {
+                    h = 31 * (31 + Objects.hashCode(cars.get(i))) + h;
+                }
+                return h;
             }
 
             @Override public String toString() {
-                if (car == null && cdr == null) {
-                    return "nil";
-                } else {
-                    return "(" + car + " " + cdr + ")";
+                StringBuilder buf = new StringBuilder();
+                int open = 0;
+                Pair<T> cur = this;
+                while (cur != null && !(cur.car == null && cur.cdr == null)) {
+                    buf.append('(').append(cur.car).append(' ');
+                    open++;
+                    cur = cur.cdr;
+                }
+                buf.append(cur == null ? "null" : "nil");
+                for (int i = 0; i < open; i++) {
+                    buf.append(')');
                 }
+                return buf.toString();
             }
         }
     }
@@ -704,48 +4340,308 @@ public interface λ {
 
         CodeGen<F, Env<F>> java = UnChurchification.compiler;
 
+        CodeGen<F, Env<F>> javaLazy = UnChurchification.lazy;
+
+        // 开销大的参数 fork 到 ForkJoinPool.commonPool 并行求值
+        CodeGen<F, Env<F>> javaParallel = UnChurchification.parallel;
+
+        CodeGen<F, Void> javaIndexed = UnChurchification.indexed;
+
+        // flat closure, 闭包只捕获自己的自由变量
+        CodeGen<F, Void> javaFlat = UnChurchification.flat;
+
+        CodeGen<F, Void> jvm = UnChurchification.bytecode;
+
+        CodeGen<F, Void> cek = UnChurchification.machine;
+
+        // 最优规约 (interaction net), 读回 normal form 用 UnChurchification.Optimal.normalize
+        CodeGen<F, Void> optimal = UnChurchification.optimal;
+
         CodeGen<Expr, Void> expr = new CodeGen<Expr, Void>() {
             @Override public Expr visit(Sym s, Void ctx) { return s; }
             @Override public Expr visit(App s, Void ctx) { return s; }
             @Override public Expr visit(Abs s, Void ctx) { return s; }
         };
 
+        // 部分求值, fuel 和 budget 用默认值, 自定义用 Compiler.Optimizer
+        CodeGen<Expr, Void> optimize = new CodeGen<Expr, Void>() {
+            @Override public Expr visit(Sym s, Void ctx) { return s; }
+            @Override public Expr visit(App s, Void ctx) { return new Compiler.Optimizer(Compiler.Optimizer.FUEL, Compiler.Optimizer.BUDGET).optimize(s); }
+            @Override public Expr visit(Abs s, Void ctx) { return new Compiler.Optimizer(Compiler.Optimizer.FUEL, Compiler.Optimizer.BUDGET).optimize(s); }
+        };
+
+        // 共享结构相同的子项, 结果是 DAG, 其他 visitor 照常可用
+        CodeGen<Expr, Void> dag = new CodeGen<Expr, Void>() {
+            @Override public Expr visit(Sym s, Void ctx) { return s; }
+            @Override public Expr visit(App s, Void ctx) { return new Compiler.HashCons().share(s); }
+            @Override public Expr visit(Abs s, Void ctx) { return new Compiler.HashCons().share(s); }
+        };
+
         // natify : (+ n 1)(0)
         // boolity: (λ () #t)(λ () #f)
-        CodeGen<String, Void> scheme = new CodeGen<String, Void>() {
-            @Override public String visit(Sym s, Void v) { return s.name; }
-            @Override public String visit(App s, Void v) { return "(" + visit(s.abs, v) + " " + visit(s.arg, v) + ")"; }
-            @Override public String visit(Abs s, Void v) { return "(" + LAMBDA + " (" + visit(s.param, v) + ") " + visit(s.body, v) + ")"; }
+        Printer scheme = new Printer() {
+            @Override String sym(Sym s) { return s.name; }
+            @Override String appOpen(App s) { return "("; }
+            @Override String appMid(App s) { return " "; }
+            @Override String appClose(App s) { return ")"; }
+            @Override String absOpen(Abs s) { return "(" + LAMBDA + " (" + sym(s.param) + ") "; }
+            @Override String absClose(Abs s) { return ")"; }
         };
 
-        CodeGen<String, Void> json = new CodeGen<String, Void>() {
-            @Override public String visit(Sym s, Void v) { return "'" + s.name + "'"; }
-            @Override public String visit(App s, Void v) { return "[" + visit(s.abs, v) + ", " + visit(s.arg, v) + "]"; }
-            @Override public String visit(Abs s, Void v) { return "['" + LAMBDA + "', [" + visit(s.param, v) + "], " + visit(s.body, v) + "]"; }
+        Printer json = new Printer() {
+            @Override String sym(Sym s) { return "'" + s.name + "'"; }
+            @Override String appOpen(App s) { return "["; }
+            @Override String appMid(App s) { return ", "; }
+            @Override String appClose(App s) { return "]"; }
+            @Override String absOpen(Abs s) { return "['" + LAMBDA + "', [" + sym(s.param) + "], "; }
+            @Override String absClose(Abs s) { return "]"; }
         };
 
         // natify : ((%s)(n => n + 1)(0))
         // boolify: ((%s)(_ => true)(_ => false))
         // (() => { let unchurchify = (churched) => churched(car => cdr => [car(n => n+1)(0), unchurchify(cdr)])(nil => null); return unchurchify })()(%s)
-        CodeGen<String, Void> js = new CodeGen<String, Void>() {
-            @Override public String visit(Sym s, Void v) { return s.name; }
-            @Override public String visit(App s, Void v) {
-                if (s.abs instanceof Sym) {
-                    return visit(s.abs, v) + "(" + visit(s.arg, v) + ")";
-                } else {
-                    return "(" + visit(s.abs, v) + ")" + "(" + visit(s.arg, v) + ")";
-                }
-            }
-            @Override public String visit(Abs s, Void v) { return "(" + visit(s.param, v) + " => " + visit(s.body, v) + ")"; }
+        Printer js = new Printer() {
+            @Override public String mangle(String name) { return Mangler.mangle(name, Mangler.JS_KEYWORDS); }
+            @Override String sym(Sym s) { return mangle(s.name); }
+            @Override String appOpen(App s) { return s.abs instanceof Sym ? "" : "("; }
+            @Override String appMid(App s) { return s.abs instanceof Sym ? "(" : ")("; }
+            @Override String appClose(App s) { return ")"; }
+            @Override String absOpen(Abs s) { return "(" + sym(s.param) + " => "; }
+            @Override String absClose(Abs s) { return ")"; }
         };
 
         // natify : (lambda n: n + 1)(0)
         // boolify: (lambda _: true)(lambda _: false)
-        CodeGen<String, Void> py = new CodeGen<String, Void>() {
-            @Override public String visit(Sym s, Void v) { return s.name; }
-            @Override public String visit(App s, Void v) { return "((" + visit(s.abs, v) + ")(" + visit(s.arg, v) + "))"; }
-            @Override public String visit(Abs s, Void v) { return "(lambda " + s.param.name + ": (" + visit(s.body, v) + "))"; }
+        Printer py = new Printer() {
+            @Override public String mangle(String name) { return Mangler.mangle(name, Mangler.PY_KEYWORDS); }
+            @Override String sym(Sym s) { return mangle(s.name); }
+            @Override String appOpen(App s) { return "(("; }
+            @Override String appMid(App s) { return ")("; }
+            @Override String appClose(App s) { return "))"; }
+            @Override String absOpen(Abs s) { return "(lambda " + sym(s.param) + ": ("; }
+            @Override String absClose(Abs s) { return "))"; }
+        };
+
+        // 压缩输出: 绑定变量按 λ 嵌套深度改名成最短的标识符 (a b .. Z aa ab ..), 只在必要处加括号, 不留空格
+        // js: 只有函数位置上的 λ 要括号, (a=>a)(b=>c=>b(c))
+        Printer jsMin = new Minifier(Mangler.JS_KEYWORDS) {
+            @Override public String mangle(String name) { return js.mangle(name); }
+            @Override String absOpen(Abs s) { return sym(s.param) + "=>"; }
         };
+
+        // py: lambda 优先级最低, 同样只有函数位置上要括号, (lambda a:a)(lambda b:lambda c:b(c))
+        Printer pyMin = new Minifier(Mangler.PY_KEYWORDS) {
+            @Override public String mangle(String name) { return py.mangle(name); }
+            @Override String absOpen(Abs s) { return "lambda " + sym(s.param) + ":"; }
+        };
+
+        abstract class Minifier extends Printer {
+            final Set<String> keywords;
+            Minifier(Set<String> keywords) { this.keywords = keywords; }
+
+            @Override String sym(Sym s) { return mangle(s.name); }
+            @Override String appOpen(App s) { return s.abs instanceof Abs ? "(" : ""; }
+            @Override String appMid(App s) { return s.abs instanceof Abs ? ")(" : "("; }
+            @Override String appClose(App s) { return ")"; }
+            @Override String absClose(Abs s) { return ""; }
+
+            @Override void print(Expr expr, Appendable out) throws IOException {
+                super.print(rename(expr), out);
+            }
+
+            // 深度 d 的 λ 参数都叫 d 号名字, 一条路径上深度各不相同, 引用处一定指向最近的同名绑定, 不会被捕获
+            // 跳过关键字和 free variable 的名字; 显式栈, 同 Prelude.free
+            Expr rename(Expr expr) {
+                Set<String> free = new HashSet<>();
+                for (Sym s : Compiler.Prelude.free(expr)) {
+                    free.add(mangle(s.name));
+                }
+                List<Sym> names = new ArrayList<>();
+                Map<Sym, Deque<Sym>> scope = new HashMap<>();
+                Deque<Object[]> todo = new ArrayDeque<>();
+                Deque<Expr> done = new ArrayDeque<>();
+                todo.push(new Object[] { expr, 0, false });
+                while (!todo.isEmpty()) {
+                    Object[] t = todo.pop();
+                    Expr e = (Expr) t[0];
+                    int depth = (int) t[1];
+                    if ((boolean) t[2]) {
+                        if (e instanceof App) {
+                            Expr arg = done.pop();
+                            done.push(new App(done.pop(), arg));
+                        } else {
+                            done.push(new Abs(scope.get(((Abs) e).param).pop(), done.pop()));
+                        }
+                    } else if (e instanceof Sym) {
+                        Deque<Sym> renamed = scope.get(e);
+                        done.push(renamed == null || renamed.isEmpty() ? e : renamed.peek());
+                    } else if (e instanceof App) {
+                        todo.push(new Object[] { e, depth, true });
+                        todo.push(new Object[] { ((App) e).arg, depth, false });
+                        todo.push(new Object[] { ((App) e).abs, depth, false });
+                    } else {
+                        while (names.size() <= depth) {
+                            names.add(symOf(nextName(names.isEmpty() ? null : names.get(names.size() - 1).name, free)));
+                        }
+                        scope.computeIfAbsent(((Abs) e).param, k -> new ArrayDeque<>()).push(names.get(depth));
+                        todo.push(new Object[] { e, depth, true });
+                        todo.push(new Object[] { ((Abs) e).body, depth + 1, false });
+                    }
+                }
+                return done.pop();
+            }
+
+            final static String FIRST = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+            final static String REST = FIRST + "0123456789";
+
+            // 按长度再按字典序的下一个名字, 跳过不能用的
+            String nextName(/*@Nullable*/ String prev, Set<String> free) {
+                String name = prev;
+                do {
+                    name = name == null ? "a" : succ(name);
+                } while (keywords.contains(name) || free.contains(name));
+                return name;
+            }
+
+            static String succ(String name) {
+                char[] cs = name.toCharArray();
+                for (int i = cs.length - 1; i >= 0; i--) {
+                    String digits = i == 0 ? FIRST : REST;
+                    int d = digits.indexOf(cs[i]);
+                    if (d + 1 < digits.length()) {
+                        cs[i] = digits.charAt(d + 1);
+                        return new String(cs);
+                    }
+                    cs[i] = digits.charAt(0);
+                }
+                // 进位: Z -> aa, Z9 -> aaa
+                return FIRST.charAt(0) + new String(cs);
+            }
+        }
+
+        // 生成代码的后端: App 输出成 appOpen abs appMid arg appClose, Abs 输出成 absOpen body absClose
+        // 显式栈, 直接写到 Appendable, 线性时间, 项再深也不爆栈; visit 返回 String 只是包了一层 StringBuilder
+        abstract class Printer implements CodeGen<String, Void> {
+            abstract String sym(Sym s);
+            abstract String appOpen(App s);
+            abstract String appMid(App s);
+            abstract String appClose(App s);
+            abstract String absOpen(Abs s);
+            abstract String absClose(Abs s);
+
+            @Override public String visit(Sym s, Void v) { return print(s); }
+            @Override public String visit(App s, Void v) { return print(s); }
+            @Override public String visit(Abs s, Void v) { return print(s); }
+
+            String print(Expr expr) {
+                StringBuilder buf = new StringBuilder();
+                try {
+                    print(expr, buf);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return buf.toString();
+            }
+
+            void print(Expr expr, Appendable out) throws IOException {
+                Deque<Object> todo = new ArrayDeque<>();
+                todo.push(expr);
+                while (!todo.isEmpty()) {
+                    Object o = todo.pop();
+                    if (o instanceof String) {
+                        out.append((String) o);
+                    } else if (o instanceof Sym) {
+                        out.append(sym((Sym) o));
+                    } else if (o instanceof App) {
+                        App app = (App) o;
+                        out.append(appOpen(app));
+                        todo.push(appClose(app));
+                        todo.push(app.arg);
+                        todo.push(appMid(app));
+                        todo.push(app.abs);
+                    } else {
+                        Abs abs = (Abs) o;
+                        out.append(absOpen(abs));
+                        todo.push(absClose(abs));
+                        todo.push(abs.body);
+                    }
+                }
+            }
+
+            // 直接写到文件 (utf-8), 经过 FileChannel, 不在内存里拼整个字符串
+            void print(Expr expr, Path file) throws IOException {
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                     Writer out = new BufferedWriter(Channels.newWriter(ch, StandardCharsets.UTF_8.newEncoder(), 1 << 16), 1 << 16)) {
+                    print(expr, out);
+                }
+            }
+        }
+
+        // 目标语言里的变量名, 默认原样
+        default String mangle(String name) { return name; }
+
+        // 合法 (ascii 字母或 _ 开头, 字母数字下划线), 不是关键字, 也不以 __ 开头的名字原样保留, 单独的 _ 也是
+        // 其他的加 __ 前缀转义: 字母数字原样, _ 变 __, 常见符号变 _单词_, 其他字符变 _u十六进制_
+        // 原样保留的名字不以 __ 开头, 转义后的都以 __ 开头, 转义本身可以逐字解回去, 所以不会撞车
+        // + -> ___plus_, zero? -> __zero_q_, #t -> ___hash_t, not (py) -> __not, __x -> ______x
+        class Mangler {
+            final static Set<String> JS_KEYWORDS = new HashSet<>(Arrays.asList(
+                    "await", "break", "case", "catch", "class", "const", "continue", "debugger", "default", "delete",
+                    "do", "else", "enum", "export", "extends", "false", "finally", "for", "function", "if",
+                    "implements", "import", "in", "instanceof", "interface", "let", "new", "null", "package",
+                    "private", "protected", "public", "return", "static", "super", "switch", "this", "throw", "true",
+                    "try", "typeof", "var", "void", "while", "with", "yield", "arguments", "eval", "undefined"));
+            final static Set<String> PY_KEYWORDS = new HashSet<>(Arrays.asList(
+                    "False", "None", "True", "and", "as", "assert", "async", "await", "break", "class", "continue",
+                    "def", "del", "elif", "else", "except", "finally", "for", "from", "global", "if", "import", "in",
+                    "is", "lambda", "nonlocal", "not", "or", "pass", "raise", "return", "try", "while", "with", "yield"));
+            final static Map<Character, String> WORDS = new HashMap<>();
+            static {
+                String chars = "+-*/^%=!<>?#&|~.:@$";
+                String[] words = { "plus", "minus", "star", "slash", "caret", "percent", "eq", "bang", "lt", "gt",
+                        "q", "hash", "amp", "bar", "tilde", "dot", "colon", "at", "dollar" };
+                for (int i = 0; i < words.length; i++) {
+                    WORDS.put(chars.charAt(i), words[i]);
+                }
+            }
+            final static String ESCAPE = "__";
+
+            static String mangle(String name, Set<String> keywords) {
+                if (legal(name) && !keywords.contains(name) && !name.startsWith(ESCAPE)) {
+                    return name;
+                }
+                StringBuilder buf = new StringBuilder(ESCAPE);
+                for (int i = 0; i < name.length(); i++) {
+                    char c = name.charAt(i);
+                    if (alnum(c)) {
+                        buf.append(c);
+                    } else if (c == '_') {
+                        buf.append("__");
+                    } else if (WORDS.containsKey(c)) {
+                        buf.append('_').append(WORDS.get(c)).append('_');
+                    } else {
+                        buf.append("_u").append(Integer.toHexString(c)).append('_');
+                    }
+                }
+                return buf.toString();
+            }
+
+            static boolean legal(String name) {
+                if (name.isEmpty() || isDigit(name.charAt(0))) {
+                    return false;
+                }
+                for (int i = 0; i < name.length(); i++) {
+                    if (!alnum(name.charAt(i)) && name.charAt(i) != '_') {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            static boolean alnum(char c) {
+                return c < 128 && Character.isLetterOrDigit(c);
+            }
+        }
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,693 @@
+package xiao;
+
+import xiao.λ.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+import static xiao.λ.CodeGen.*;
+import static xiao.λ.Expr.*;
+import static xiao.λ.*;
+
+/**
+ * 粗略的基准, 不依赖 jmh, 每项打印耗时和当前线程分配的字节数 <br>
+ * java -cp target/classes:target/test-classes xiao.Bench [name ...]
+ *
+ * @author chuxiaofeng
+ */
+public class Bench {
+
+    public static void main(String[] args) {
+        Bench bench = new Bench();
+        Map<String, Runnable> all = new LinkedHashMap<>();
+        all.put("indexed", bench::indexed);
+        all.put("jvm", bench::jvm);
+        all.put("cek", bench::cek);
+        all.put("intern", bench::intern);
+        all.put("dag", bench::dag);
+        all.put("boot", bench::boot);
+        all.put("parse", bench::parse);
+        all.put("desugar", bench::desugar);
+        all.put("literals", bench::literals);
+        all.put("optimize", bench::optimize);
+        all.put("jets", bench::jets);
+        all.put("lazy", bench::lazy);
+        all.put("prelude", bench::prelude);
+        all.put("emit", bench::emit);
+        all.put("minify", bench::minify);
+        all.put("decode", bench::decode);
+        all.put("stream", bench::stream);
+        all.put("metrics", bench::metrics);
+        all.put("batch", bench::batch);
+        all.put("cache", bench::cache);
+        all.put("binary", bench::binary);
+        all.put("optimal", bench::optimal);
+        all.put("parallel", bench::parallel);
+        all.put("retained", bench::retained);
+
+        Collection<String> names = args.length == 0 ? all.keySet() : Arrays.asList(args);
+        for (String name : names) {
+            System.out.println("== " + name);
+            all.get(name).run();
+        }
+    }
+
+
+    // Test, Bench 和 benchmarks 模块 (通过 test-jar 依赖) 共用的程序, 只在这里写一份
+    static final String FACT = "(letrec ((fact (λ (n) (if (= n 0) 1 (* n (fact (- n 1))))))) (fact %d))";
+
+    static final String FIZZBUZZ = fizzbuzz(100);
+
+    static final String SIZE = "(letrec ((size (λ (s) (if (null? s) 0 (+ 1 (size (cdr s))))))) (size %s))";
+
+    // 1 到 n 的 fizzbuzz, 只处理两位数
+    static String fizzbuzz(int n) {
+        return "(letrec ((fizzbuzz (λ (i s)\n" +
+                "   (if (<= i " + n + ")\n" +
+                "       (if (= (% i 15) 0)\n" +
+                "           (fizzbuzz (+ i 1) (cons \"FizzBuzz\" s))\n" +
+                "           (if (= (% i 3) 0)\n" +
+                "               (fizzbuzz (+ i 1) (cons \"Fizz\" s))\n" +
+                "               (if (= (% i 5) 0)\n" +
+                "                   (fizzbuzz (+ i 1) (cons \"Buzz\" s))\n" +
+                "                   (fizzbuzz (+ i 1) (cons \n" +
+                "                                           (if (< i 10) \n" +
+                "                                                   (cons (+ 48 i) (quote ())) \n" +
+                "                                                   (cons (+ 48 (/ i 10)) (cons (+ 48 (% i 10)) (quote ())))) \n" +
+                "                                           s))\n" +
+                "                   )\n" +
+                "               )\n" +
+                "           )\n" +
+                "       s))))\n" +
+                "      (fizzbuzz 1 (quote ())))";
+    }
+
+
+    // Env + LinkedHashMap vs de Bruijn index + Frame
+    void indexed() {
+        Expr fact = compile(format(FACT, 6));
+        Expr fizzbuzz = compile(FIZZBUZZ);
+        for (CodeGen<UnChurchification.F, ?> gen : Arrays.<CodeGen<UnChurchification.F, ?>>asList(java, javaIndexed)) {
+            String name = gen == java ? "java" : "javaIndexed";
+            measure(name + " fact 6", 20, 50, () -> compile(fact, gen, null).nat());
+            measure(name + " fizzbuzz", 5, 20, () -> compile(fizzbuzz, gen, null).list(UnChurchification::stringify));
+        }
+    }
+
+    // 解释 AST vs 每个 λ 一个 class, 生成 class 的开销也算在里头
+    void jvm() {
+        Expr fact = compile(format(FACT, 6));
+        Expr fizzbuzz = compile(FIZZBUZZ);
+        for (CodeGen<UnChurchification.F, ?> gen : Arrays.<CodeGen<UnChurchification.F, ?>>asList(java, javaIndexed, jvm)) {
+            String name = gen == java ? "java" : gen == jvm ? "jvm" : "javaIndexed";
+            measure(name + " fact 6", 20, 50, () -> compile(fact, gen, null).nat());
+            measure(name + " fizzbuzz", 5, 20, () -> compile(fizzbuzz, gen, null).list(UnChurchification::stringify));
+        }
+        UnChurchification.F hello = compile("(λ (_) \"Hello World!\")", jvm);
+        measure("jvm hello (loaded)", 1000, 10000, () -> hello.apply(hello).string());
+        UnChurchification.F helloIdx = compile("(λ (_) \"Hello World!\")", javaIndexed);
+        measure("javaIndexed hello", 1000, 10000, () -> helloIdx.apply(helloIdx).string());
+    }
+
+    // 递归 10^6 层, 只有 cek 跑得完
+    void cek() {
+        for (int n = 4; n <= 6; n++) {
+            String deep = format("(letrec ((size (λ (s) (if (null? s) 0 (+ 1 (size (cdr s))))))) (size ((^ 10 %d) (λ (l) (cons 0 l)) (quote ()))))", n);
+            Expr expr = compile(deep);
+            measure("cek size 10^" + n, 1, 3, () -> compile(expr, cek, null).nat());
+        }
+        Expr fizzbuzz = compile(FIZZBUZZ);
+        measure("javaIndexed fizzbuzz", 5, 20, () -> compile(fizzbuzz, javaIndexed, null).list(UnChurchification::stringify));
+        measure("cek fizzbuzz", 5, 20, () -> compile(fizzbuzz, cek, null).list(UnChurchification::stringify));
+    }
+
+    // 32 线程同时 parse + compile, 测 Sym 驻留表的争用
+    void intern() {
+        int threads = 32, rounds = 20;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Supplier<Object> compileAll = () -> {
+            List<Callable<Expr>> tasks = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                tasks.add(() -> compile(FIZZBUZZ));
+            }
+            try {
+                for (Future<Expr> f : pool.invokeAll(tasks)) {
+                    f.get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+            return null;
+        };
+        measure("fizzbuzz x " + threads + " threads", 5, rounds, compileAll);
+        pool.shutdown();
+        System.out.println("syms " + Expr.symCache.size());
+    }
+
+    // 树 vs hash consing 之后的 DAG, 节点数与常驻内存
+    void dag() {
+        Expr tree = compile(FIZZBUZZ);
+        Expr shared = compile(tree, dag, null);
+        System.out.println(format("%-40s %14d", "unfolded nodes", unfolded(tree)));
+        for (Expr e : Arrays.asList(tree, shared)) {
+            String name = e == tree ? "tree" : "dag";
+            long retained = retained(e == tree ? () -> compile(FIZZBUZZ) : () -> compile(FIZZBUZZ, dag));
+            System.out.println(format("%-40s %14d nodes %14d B retained", name, distinct(e), retained));
+        }
+        measure("dag pass", 5, 20, () -> compile(tree, dag, null));
+        measure("javaIndexed fizzbuzz tree", 5, 20, () -> compile(tree, javaIndexed, null).list(UnChurchification::stringify));
+        measure("javaIndexed fizzbuzz dag", 5, 20, () -> compile(shared, javaIndexed, null).list(UnChurchification::stringify));
+    }
+
+    // 不同 App/Abs 对象个数
+    static int distinct(Expr e) {
+        Set<Expr> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Expr> todo = new ArrayDeque<>();
+        todo.push(e);
+        while (!todo.isEmpty()) {
+            Expr it = todo.pop();
+            if (it instanceof Sym || !seen.add(it)) continue;
+            if (it instanceof App) {
+                todo.push(((App) it).abs);
+                todo.push(((App) it).arg);
+            } else {
+                todo.push(((Abs) it).body);
+            }
+        }
+        return seen.size();
+    }
+
+    // 展开成树的节点数
+    static long unfolded(Expr e) {
+        Map<Expr, Long> memo = new IdentityHashMap<>();
+        Deque<Expr> todo = new ArrayDeque<>();
+        todo.push(e);
+        while (!todo.isEmpty()) {
+            Expr it = todo.peek();
+            if (it instanceof Sym) {
+                memo.put(todo.pop(), 0L);
+            } else if (it instanceof App) {
+                Long l = memo.get(((App) it).abs), r = memo.get(((App) it).arg);
+                if (l == null) todo.push(((App) it).abs);
+                else if (r == null) todo.push(((App) it).arg);
+                else memo.put(todo.pop(), l + r + 1);
+            } else {
+                Long b = memo.get(((Abs) it).body);
+                if (b == null) todo.push(((Abs) it).body);
+                else memo.put(todo.pop(), b + 1);
+            }
+        }
+        return memo.get(e);
+    }
+
+    // 持有 64 份 supplier 的结果, 粗略看 gc 之后堆增长
+    static long retained(Supplier<Object> supplier) {
+        int copies = 64;
+        Object[] keep = new Object[copies];
+        long before = used();
+        for (int i = 0; i < copies; i++) {
+            keep[i] = supplier.get();
+        }
+        long after = used();
+        if (keep[copies - 1] == null) throw new IllegalStateException();
+        return (after - before) / copies;
+    }
+
+    static long used() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // 每次重建 bootstrap 环境 vs 冻结共享
+    void boot() {
+        long start = System.nanoTime();
+        bootEnv();
+        System.out.println(format("%-40s %10.3f ms", "first bootEnv()", (System.nanoTime() - start) / 1e6));
+        String one = "(+ 1 2)";
+        measure("one-liner rebuild boot", 50, 200, () -> λ.Compiler.compile(Parser.parse(one), buildBootEnv(λ.Compiler.expander)));
+        measure("one-liner frozen boot", 50, 200, () -> compile(one));
+        measure("fizzbuzz rebuild boot", 20, 100, () -> λ.Compiler.compile(Parser.parse(FIZZBUZZ), buildBootEnv(λ.Compiler.expander)));
+        measure("fizzbuzz frozen boot", 20, 100, () -> compile(FIZZBUZZ));
+    }
+
+    // 多个 form 的大文件: 整个读成 String vs Reader vs mmap, 逐个 form 消费掉
+    void parse() {
+        try {
+            Path file = Files.createTempFile("fizzbuzz", ".ss");
+            try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                for (int i = 0; i < 10000; i++) {
+                    w.write(FIZZBUZZ);
+                    w.write("\n");
+                }
+            }
+            System.out.println(format("%-40s %14d B", "file", Files.size(file)));
+            measure("String", 2, 5, () -> count(new Parser(new String(read(file), StandardCharsets.UTF_8))));
+            measure("Reader", 2, 5, () -> {
+                try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    return count(new Parser(r));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            measure("mmap", 2, 5, () -> count(parser(file)));
+            Files.delete(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static int count(Iterator<?> it) {
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    static byte[] read(Path file) {
+        try { return Files.readAllBytes(file); } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    static Parser parser(Path file) {
+        try { return Parser.parse(file); } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    // 宽 apply 和长参数列表, 只测 compile1
+    void desugar() {
+        for (int n : new int[] { 100, 1000, 10000 }) {
+            StringBuilder params = new StringBuilder(), args = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                params.append(" x").append(i);
+                args.append(" x").append(i);
+            }
+            Parser.Node lam = Parser.parse("(λ (" + params + ") (f" + args + "))");
+            Parser.Node let = Parser.parse("(let (" + args.toString().replaceAll(" (x\\d+)", " ($1 0)") + ") x0)");
+            measure("λ + apply " + n, 5, 20, () -> λ.Compiler.compile1(lam));
+            measure("let " + n, 5, 20, () -> λ.Compiler.compile1(let));
+        }
+    }
+
+    // 长字符串字面量, parse + compile1 + expand
+    void literals() {
+        for (int n : new int[] { 1000, 10000, 100000 }) {
+            StringBuilder sb = new StringBuilder("\"");
+            for (int i = 0; i < n; i++) {
+                sb.append((char) ('a' + i % 26));
+            }
+            String src = sb.append('"').toString();
+            measure("string " + n, 3, 10, () -> compile(src));
+        }
+    }
+
+    // 部分求值前后: 树大小, js/py 代码长度, javaIndexed 运行时间
+    void optimize() {
+        Map<String, String> programs = new LinkedHashMap<>();
+        programs.put("(+ 3 4)", "(+ 3 4)");
+        programs.put("hello", "\"Hello World!\"");
+        programs.put("fact 6", format(FACT, 6));
+        programs.put("size", "(letrec ((size (λ (s) (if (null? s) 0 (+ 1 (size (cdr s))))))) (size (cons 1 (cons 2 (cons 3 (quote ()))))))");
+        programs.put("fizzbuzz", FIZZBUZZ);
+        programs.forEach((name, src) -> {
+            Expr expr = compile(src);
+            long start = System.nanoTime();
+            Expr opt = compile(expr, optimize, null);
+            double ms = (System.nanoTime() - start) / 1e6;
+            System.out.println(format("%-12s nodes %8d -> %-8d js %8d -> %-8d py %8d -> %-8d pass %.1f ms", name,
+                    unfolded(expr), unfolded(opt),
+                    compile(expr, js, null).length(), compile(opt, js, null).length(),
+                    compile(expr, py, null).length(), compile(opt, py, null).length(), ms));
+            Function<UnChurchification.F, Object> decode = name.equals("hello") ? UnChurchification.F::string
+                    : name.equals("fizzbuzz") ? f -> f.list(UnChurchification::stringify) : UnChurchification.F::nat;
+            measure(name + " javaIndexed", 5, 20, () -> decode.apply(compile(expr, javaIndexed, null)));
+            measure(name + " javaIndexed optimized", 5, 20, () -> decode.apply(compile(opt, javaIndexed, null)));
+        });
+    }
+
+    // 算术 primitive 用 int 算 vs 丘齐编码
+    void jets() {
+        Expr fact = compile(format(FACT, 6));
+        Expr fizzbuzz = compile(FIZZBUZZ);
+        Expr pow = compile("(^ 2 20)");
+        Map<String, CodeGen<UnChurchification.F, ?>> gens = new LinkedHashMap<>();
+        gens.put("java", new UnChurchification.Compiler(false));
+        gens.put("java jets", java);
+        gens.put("javaIndexed", new UnChurchification.Indexed(false));
+        gens.put("javaIndexed jets", javaIndexed);
+        gens.forEach((name, gen) -> {
+            measure(name + " fact 6", 5, 20, () -> compile(fact, gen, null).nat());
+            measure(name + " fizzbuzz", 2, 5, () -> compile(fizzbuzz, gen, null).list(UnChurchification::stringify));
+            measure(name + " (^ 2 20)", 1, 3, () -> compile(pow, gen, null).nat());
+        });
+    }
+
+    // 每轮都传一个用不到的 (fact 5), 严格求值每轮都算, call-by-need 一次都不算
+    void lazy() {
+        String loop = "(letrec ((fact (λ (n) (if (= n 0) 1 (* n (fact (- n 1))))))) " +
+                "(letrec ((loop (λ (i x) (if (= i 0) 0 (loop (- i 1) (fact 5)))))) (loop %d 0)))";
+        Map<String, CodeGen<UnChurchification.F, Env<UnChurchification.F>>> gens = new LinkedHashMap<>();
+        gens.put("java", new UnChurchification.Compiler(false));
+        gens.put("java lazy", new UnChurchification.Compiler(false, true));
+        gens.put("java jets", java);
+        gens.put("java jets lazy", javaLazy);
+        Expr fizzbuzz = compile(FIZZBUZZ);
+        gens.forEach((name, gen) -> {
+            for (int n : new int[] { 10, 20, 40 }) {
+                Expr e = compile(format(loop, n));
+                measure(name + " loop " + n, 2, 5, () -> compile(e, gen, null).nat());
+            }
+            measure(name + " fizzbuzz", 2, 5, () -> compile(fizzbuzz, gen, null).list(UnChurchification::stringify));
+        });
+    }
+
+    // 输出大小: primitive 展开到每个引用处 vs 在最外层绑定一次
+    void prelude() {
+        Map<String, String> programs = new LinkedHashMap<>();
+        programs.put("fact 6", format(FACT, 6));
+        programs.put("fizzbuzz", FIZZBUZZ);
+        programs.put("(= (% i 3) (/ i 3)) x10", "(λ (i) (and " + String.join(" ", Collections.nCopies(10, "(= (% i 3) (/ i 3))")) + "))");
+        Map<String, CodeGen<String, Void>> gens = new LinkedHashMap<>();
+        gens.put("scheme", scheme);
+        gens.put("json", json);
+        gens.put("js", js);
+        gens.put("py", py);
+        programs.forEach((name, src) -> gens.forEach((genName, gen) -> {
+            int full = compile(src, gen).length();
+            int prelude = compileWithPrelude(src, gen).length();
+            System.out.println(format("%-40s %10d -> %10d chars %6.1f%%", genName + " " + name, full, prelude, 100.0 * prelude / full));
+        }));
+        Expr fizzbuzz = compile(FIZZBUZZ);
+        Expr linked = λ.Compiler.Prelude.link(λ.Compiler.compile1(Parser.parse(FIZZBUZZ)));
+        measure("java fizzbuzz", 2, 5, () -> compile(fizzbuzz, java, null).list(UnChurchification::stringify));
+        measure("java fizzbuzz prelude", 2, 5, () -> compile(linked, java, null).list(UnChurchification::stringify));
+    }
+
+    // 10^7 个节点的项 (丘齐数 5*10^6, 嵌套深度 5*10^6) 直接写到文件
+    void emit() {
+        Expr small = λ.Compiler.churchNumeral(50_000);
+        Expr big = λ.Compiler.churchNumeral(5_000_000);
+        System.out.println("nodes " + (2 * 5_000_000 + 3));
+        try {
+            Path file = Files.createTempFile("λ", ".js");
+            try {
+                for (CodeGen.Printer gen : Arrays.asList(scheme, js, py)) {
+                    String name = gen == scheme ? "scheme" : gen == js ? "js" : "py";
+                    measure(name + " 10^5 nodes String", 5, 20, () -> compile(small, gen, null).length());
+                    measure(name + " 10^7 nodes file", 1, 3, () -> {
+                        try {
+                            gen.print(big, file);
+                            return Files.size(file);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                    System.out.println(format("%-40s %10d bytes", name + " file size", Files.size(file)));
+                }
+            } finally {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 输出大小: js/py vs jsMin/pyMin, 完全展开和 prelude 两种模式
+    void minify() {
+        Map<String, String> programs = new LinkedHashMap<>();
+        programs.put("fact 6", format(FACT, 6));
+        programs.put("fizzbuzz", FIZZBUZZ);
+        programs.put("\"hello world\"", "\"hello world\"");
+        programs.forEach((name, src) -> {
+            report("js " + name, compile(src, js).length(), compile(src, jsMin).length());
+            report("py " + name, compile(src, py).length(), compile(src, pyMin).length());
+            report("js prelude " + name, compileWithPrelude(src, js).length(), compileWithPrelude(src, jsMin).length());
+            report("py prelude " + name, compileWithPrelude(src, py).length(), compileWithPrelude(src, pyMin).length());
+        });
+        Expr fizzbuzz = compile(FIZZBUZZ);
+        measure("js fizzbuzz", 5, 20, () -> compile(fizzbuzz, js, null).length());
+        measure("jsMin fizzbuzz", 5, 20, () -> compile(fizzbuzz, jsMin, null).length());
+    }
+
+    // 解码大的丘齐数, list, 字符串; list 在宿主里直接构造, 只测解码
+    void decode() {
+        // jets 关掉, 结果是丘齐编码的闭包, 不是 Num
+        UnChurchification.F numeral = compile("(* 1000 1000)", new UnChurchification.Compiler(false));
+        measure("natify 10^6", 2, 5, () -> numeral.nat());
+        for (int n : new int[] { 1_000, 100_000 }) {
+            UnChurchification.F lst = compile("(quote ())", java);
+            for (int i = n - 1; i >= 0; i--) {
+                UnChurchification.F car = compile(Integer.toString('a' + i % 26), java), cdr = lst;
+                lst = onCons -> onNil -> onCons.apply(car).apply(cdr);
+            }
+            UnChurchification.F list = lst;
+            measure("listify " + n, 2, 5, () -> list.list(UnChurchification::natify).size());
+            measure("nats " + n, 2, 5, () -> list.nats().length);
+            measure("stringify " + n, 2, 5, () -> list.string().length());
+        }
+    }
+
+    // 只要前缀时, 按需解码 vs 整个 list 转成 Pair; call-by-need 的无限 list 遍历时内存不随长度增长
+    void stream() {
+        int n = 100_000;
+        UnChurchification.F lst = compile("(quote ())", java);
+        for (int i = n - 1; i >= 0; i--) {
+            UnChurchification.F car = compile(Integer.toString(i % 256), java), cdr = lst;
+            lst = onCons -> onNil -> onCons.apply(car).apply(cdr);
+        }
+        UnChurchification.F list = lst;
+        measure("listify 10^5, first 10", 2, 5, () -> list.list(UnChurchification::natify).list().subList(0, 10));
+        measure("stream 10^5, first 10", 2, 5, () -> list.stream(UnChurchification::natify).limit(10).collect(Collectors.toList()));
+
+        String from = "(letrec ((from (λ (n) (cons n (from (+ n 1)))))) (from 0))";
+        for (int k : new int[] { 10_000, 100_000 }) {
+            Iterator<Integer> it = compile(from, javaLazy).iterator(UnChurchification::natify);
+            long start = System.nanoTime();
+            for (int i = 0; i < k; i++) {
+                it.next();
+            }
+            long ns = System.nanoTime() - start;
+            long used = used();
+            System.out.println(format("%-40s %10.3f ms %14d B used", "lazy (from 0) first " + k, ns / 1e6, used));
+            if (it.next() != k) throw new IllegalStateException();
+        }
+    }
+
+    // 统计结果, 打开统计的开销, JFR 事件
+    void metrics() {
+        Expr fact = compile(format(FACT, 6));
+        Expr fizzbuzz = compile(FIZZBUZZ);
+        for (boolean jets : new boolean[] { false, true }) {
+            for (boolean lazy : new boolean[] { false, true }) {
+                String mode = (jets ? "jets " : "") + (lazy ? "lazy" : "strict");
+                UnChurchification.Metrics m = new UnChurchification.Metrics();
+                UnChurchification.Metrics.evaluate(fact, jets, lazy, UnChurchification.F::nat, m);
+                System.out.println(format("%-24s %s", "fact 6 " + mode, m));
+                m = new UnChurchification.Metrics();
+                UnChurchification.Metrics.evaluate(fizzbuzz, jets, lazy, f -> f.list(UnChurchification::stringify), m);
+                System.out.println(format("%-24s %s", "fizzbuzz " + mode, m));
+            }
+        }
+        measure("java fizzbuzz", 3, 10, () -> compile(fizzbuzz, java, null).list(UnChurchification::stringify));
+        measure("java fizzbuzz metrics", 3, 10, () -> UnChurchification.Metrics.evaluate(fizzbuzz, true, false,
+                f -> f.list(UnChurchification::stringify), new UnChurchification.Metrics()));
+
+        try (jdk.jfr.Recording recording = new jdk.jfr.Recording()) {
+            recording.enable("xiao.lambda.Evaluation");
+            recording.start();
+            UnChurchification.Metrics.evaluate(fact, true, false, UnChurchification.F::nat, new UnChurchification.Metrics());
+            recording.stop();
+            Path file = Files.createTempFile("λ", ".jfr");
+            recording.dump(file);
+            for (jdk.jfr.consumer.RecordedEvent e : jdk.jfr.consumer.RecordingFile.readAllEvents(file)) {
+                System.out.println(format("jfr %s %s frames=%d peakDepth=%d", e.getEventType().getName(), e.getDuration(), e.getLong("frames"), e.getInt("peakDepth")));
+            }
+            Files.delete(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 2000 个小程序批量编译, 线程数从 1 翻倍到核数
+    void batch() {
+        List<String> codes = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            codes.add(format(FACT, i % 10));
+        }
+        measure("sequential", 10, 10, () -> codes.stream().map(s -> compile(s, js)).collect(Collectors.toList()));
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int n = 1; ; n = Math.min(n * 2, cores)) {
+            ForkJoinPool pool = new ForkJoinPool(n);
+            measure("compileAll " + n + " threads", 10, 10, () -> compileAll(codes, js, pool));
+            pool.shutdown();
+            if (n == cores) break;
+        }
+    }
+
+    // 不缓存 / 内存命中 / 只复用 Expr / 重启后磁盘命中
+    void cache() {
+        Cache cache = new Cache(64);
+        measure("compile fizzbuzz js", 5, 20, () -> compile(FIZZBUZZ, js));
+        measure("cached fizzbuzz js", 1000, 10000, () -> cache.compile(FIZZBUZZ, js));
+        measure("cached expr, new target", 5, 20, () -> compile(cache.compile(FIZZBUZZ), py, null));
+        try {
+            Path dir = Files.createTempDirectory("λ-cache");
+            new Cache(64, dir).compile(FIZZBUZZ, js);
+            measure("disk fizzbuzz js", 100, 1000, () -> new Cache(64, dir).compile(FIZZBUZZ, js));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.out.println(cache.stats());
+    }
+
+    // 产物大小, 重新 parse 文本 vs 读二进制 (Expr / Indexed.Code / mmap)
+    void binary() {
+        Expr fizzbuzz = compile(FIZZBUZZ);
+        String text = compile(fizzbuzz, scheme, null);
+        byte[] bytes = Binary.encode(fizzbuzz);
+        System.out.println(format("%-40s %14d B", "scheme", text.getBytes(StandardCharsets.UTF_8).length));
+        System.out.println(format("%-40s %14d B", "json", compile(fizzbuzz, json, null).getBytes(StandardCharsets.UTF_8).length));
+        System.out.println(format("%-40s %14d B", "binary", bytes.length));
+        measure("encode", 100, 1000, () -> Binary.encode(fizzbuzz));
+        measure("reparse scheme", 20, 100, () -> λ.Compiler.compile1(Parser.parse(text)));
+        measure("decode Expr", 100, 1000, () -> Binary.decode(ByteBuffer.wrap(bytes)));
+        measure("decode Expr + javaIndexed resolve", 100, 1000, () -> compile(Binary.decode(ByteBuffer.wrap(bytes)), javaIndexed, null));
+        measure("decode Code", 100, 1000, () -> Binary.code(ByteBuffer.wrap(bytes), true));
+        try {
+            Path file = Files.createTempFile("λ", ".xlb");
+            Binary.write(fizzbuzz, file);
+            measure("mmap + decode Code", 100, 1000, () -> Binary.code(Binary.map(file), true));
+            Files.delete(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 最优规约 vs 环境求值, 先都不开 jets 再都开; shared under λ 是 λ 下面不依赖参数的 redex, 环境求值每次调用都算一遍
+    // zero? 只看 (^ 2 16) 的最外层, 环境求值还是要展开 2^16 次调用, 最优规约共享之后只有几十次 β
+    // 开 jets 的再比一下 fizzbuzz
+    void optimal() {
+        Map<String, Expr> programs = new LinkedHashMap<>();
+        programs.put("(^ 2 12)", compile("(^ 2 12)"));
+        programs.put("fact 5", compile(format(FACT, 5)));
+        programs.put("(/ 30 7)", compile("(/ 30 7)"));
+        programs.put("shared under λ", compile("((λ (g) (+ (g 0) (+ (g 0) (+ (g 0) (g 0))))) (λ (_) (^ 2 12)))"));
+        programs.put("(zero? (^ 2 16))", compile("(if (zero? (^ 2 16)) 1 0)"));
+        Map<String, CodeGen<UnChurchification.F, ?>> gens = new LinkedHashMap<>();
+        gens.put("java", new UnChurchification.Compiler(false));
+        gens.put("optimal", optimal);
+        gens.put("java jets", new UnChurchification.Compiler(true));
+        gens.put("optimal jets", new UnChurchification.Optimal(true));
+        gens.forEach((name, gen) -> programs.forEach((p, e) ->
+                measure(name + " " + p, 3, 10, () -> compile(e, gen, null).nat())));
+        Expr fizzbuzz = compile(FIZZBUZZ);
+        measure("java jets fizzbuzz", 2, 5, () -> compile(fizzbuzz, gens.get("java jets"), null).list(UnChurchification::stringify));
+        measure("optimal jets fizzbuzz", 2, 5, () -> compile(fizzbuzz, gens.get("optimal jets"), null).list(UnChurchification::stringify));
+        Expr pow = compile("(^ 2 10)");
+        measure("optimal normalize (^ 2 10)", 3, 10, () -> UnChurchification.Optimal.normalize(pow));
+    }
+
+    // 8 个互相独立的 (fact 7) (不开 jets) 组成的 list, 和 fizzbuzz; 顺序求值 vs 不同线程数的并行求值
+    // B/op 只统计调用线程, 并行时 worker 上的分配不在里面
+    void parallel() {
+        StringBuilder list = new StringBuilder("(quote ())");
+        for (int i = 0; i < 8; i++) {
+            list.insert(0, "(cons (fact 7) ").append(")");
+        }
+        Expr facts = compile(format("(letrec ((fact (λ (n) (if (= n 0) 1 (* n (fact (- n 1))))))) %s)", list));
+        Expr fizzbuzz = compile(FIZZBUZZ);
+        CodeGen<UnChurchification.F, Env<UnChurchification.F>> sequential = new UnChurchification.Compiler(false);
+        measure("sequential facts", 5, 10, () -> compile(facts, sequential, null).nats());
+        measure("sequential fizzbuzz", 2, 5, () -> compile(fizzbuzz, sequential, null).list(UnChurchification::stringify));
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int n = 1; ; n = Math.min(n * 2, cores)) {
+            ForkJoinPool pool = new ForkJoinPool(n);
+            CodeGen<UnChurchification.F, Env<UnChurchification.F>> gen = new UnChurchification.Parallel(false, pool, UnChurchification.Parallel.THRESHOLD);
+            measure("parallel facts " + n + " threads", 5, 10, () -> compile(facts, gen, null).nats());
+            measure("parallel fizzbuzz " + n + " threads", 2, 5, () -> compile(fizzbuzz, gen, null).list(UnChurchification::stringify));
+            pool.shutdown();
+            if (n == cores) break;
+        }
+    }
+
+    // letrec 循环建 list, 结果 list 留住的堆 (每个元素): Env 链 vs Indexed 的 Frame 链 vs flat closure
+    // 第二个循环每轮有一个用过就丢的 scratch, 元素是只捕获 i 的闭包; 递归很深, 在大栈的线程里跑
+    void retained() {
+        Thread t = new Thread(null, this::retainedLoops, "retained", 1L << 30);
+        t.start();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void retainedLoops() {
+        int n = 20000;
+        Map<String, Expr> loops = new LinkedHashMap<>();
+        loops.put("range", compile(format("(letrec ((range (λ (i acc) (if (= i 0) acc (range (- i 1) (cons i acc)))))) (range %d (quote ())))", n)));
+        loops.put("range with scratch", compile(format("(letrec ((range (λ (i acc) (if (= i 0) acc (range (- i 1) " +
+                "(let ((scratch (cons i (cons i (cons i (quote ())))))) (if (null? scratch) acc (cons (λ (s) i) acc)))))))) (range %d (quote ())))", n)));
+        Map<String, CodeGen<UnChurchification.F, ?>> gens = new LinkedHashMap<>();
+        gens.put("java", java);
+        gens.put("javaIndexed", javaIndexed);
+        gens.put("javaFlat", javaFlat);
+        loops.forEach((name, e) -> gens.forEach((g, gen) -> {
+            long before = usedHeap();
+            UnChurchification.F lst = compile(e, gen, null);
+            long after = usedHeap();
+            int size = lst.list(x -> 0).size();
+            System.out.println(format("%-40s %10d B/element", g + " " + name, (after - before) / size));
+        }));
+        gens.forEach((g, gen) -> measure(g + " range", 5, 20, () -> compile(loops.get("range"), gen, null)));
+    }
+
+    static long usedHeap() {
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    static void report(String name, int before, int after) {
+        System.out.println(format("%-40s %10d -> %10d chars %6.1f%%", name, before, after, 100.0 * after / before));
+    }
+
+    static long allocated() {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static void measure(String name, int warmup, int n, Supplier<?> body) {
+        for (int i = 0; i < warmup; i++) {
+            body.get();
+        }
+        long bytes = allocated();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            body.get();
+        }
+        long ns = (System.nanoTime() - start) / n;
+        bytes = (allocated() - bytes) / n;
+        System.out.println(format("%-40s %10.3f ms/op %14d B/op", name, ns / 1e6, bytes));
+    }
+}
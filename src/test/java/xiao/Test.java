@@ -1,15 +1,32 @@
 package xiao;
 
 import xiao.λ.*;
+import xiao.λ.UnChurchification.F;
 import xiao.λ.UnChurchification.Pair;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 
 import static java.lang.String.format;
@@ -34,6 +51,28 @@ public class Test {
         test.fizzbuzz();
         test.fact();
         test.size();
+        test.deep();
+        test.symbols();
+        test.dag();
+        test.boot();
+        test.parser();
+        test.desugar();
+        test.literals();
+        test.optimize();
+        test.jets();
+        test.lazy();
+        test.prelude();
+        test.printer();
+        test.minify();
+        test.decoders();
+        test.streams();
+        test.metrics();
+        test.batch();
+        test.cache();
+        test.binary();
+        test.optimal();
+        test.parallel();
+        test.flat();
         test.tmp();
         System.out.println(test.jsCode);
     }
@@ -41,33 +80,68 @@ public class Test {
 
     String jsCode = "";
 
+    // 编译到 java F 的后端, 结果都要和 CodeGen.java 一致
+    // CodeGen.optimal 不开 jets, 丘齐编码跑 fizzbuzz 这类递归太慢, 这里用开 jets 的
+    final List<CodeGen<F, ?>> javaBackends = Arrays.asList(java, javaLazy, javaParallel, javaIndexed, javaFlat, jvm, cek, new UnChurchification.Optimal(true));
+
     void assertEquals(Pair<Integer> expected, String jsArr, String s) {
-        assert expected.equals(compile(s, java).list(UnChurchification::natify));
+        for (CodeGen<F, ?> gen : javaBackends) {
+            assert expected.equals(compile(s, gen).list(UnChurchification::natify));
+        }
+        assert expected.equals(optimized(s).list(UnChurchification::natify));
+        assert expected.equals(prelude(s).list(UnChurchification::natify));
         jsCode += format("console.assert(JSON.stringify(%s) === JSON.stringify((() => { let unchurchify = (churched) => churched(car => cdr => [car(n => n+1)(0), unchurchify(cdr)])(nil => null); return unchurchify })()(%s)), `%s`)\n\n", jsArr, compile(s, js), s);
     }
 
     void assertEquals(String expected, String s) {
-        assert expected.equals(compile(s, java).string());
+        for (CodeGen<F, ?> gen : javaBackends) {
+            assert expected.equals(compile(s, gen).string());
+        }
+        assert expected.equals(optimized(s).string());
+        assert expected.equals(prelude(s).string());
         // console.assert(`%s`
         jsCode += format("console.assert(`%s`=== (() => { let unchurchify = (churched) => churched(car => cdr => String.fromCharCode(car(n => n+1)(0)) + unchurchify(cdr))(nil => ''); return unchurchify })()(%s), %s)\n\n", expected, compile(s, js), s);
     }
 
     void assertEquals(int expected, String s) {
-        assert expected == compile(s, java).nat();
+        for (CodeGen<F, ?> gen : javaBackends) {
+            assert expected == compile(s, gen).nat();
+        }
+        assert expected == optimized(s).nat();
+        assert expected == prelude(s).nat();
         jsCode += format("console.assert(%d === ((%s)(n => n + 1)(0)), `%s`)\n\n", expected, compile(s, js), s);
     }
 
     void assertTrue(String s) {
-        assert compile(s, java).bool();
+        for (CodeGen<F, ?> gen : javaBackends) {
+            assert compile(s, gen).bool();
+        }
+        assert optimized(s).bool();
+        assert prelude(s).bool();
         jsCode += format("console.assert((%s)(_ => true)(_ => false), `%s`)\n\n", compile(s, js), s);
     }
 
     void assertFalse(String s) {
-        assert !compile(s, java).bool();
+        for (CodeGen<F, ?> gen : javaBackends) {
+            assert !compile(s, gen).bool();
+        }
+        assert !optimized(s).bool();
+        assert !prelude(s).bool();
         jsCode += format("console.assert(false === (%s)(_ => true)(_ => false), `%s`)\n\n", compile(s, js), s);
     }
 
 
+    // 部分求值之后再跑
+    static F optimized(String s) {
+        return compile(compile(s, optimize), cek, null);
+    }
+
+    // primitive 在最外层绑定一次
+    static F prelude(String s) {
+        return compileWithPrelude(s, java);
+    }
+
+
     void hello() {
         assertEquals("Hello World!", "\"Hello World!\"");
     }
@@ -177,25 +251,14 @@ public class Test {
     }
 
     void fizzbuzz() {
-        String fizzbuzz = "(letrec ((fizzbuzz (λ (i s)\n" +
-                "   (if (<= i 100)\n" +
-                "       (if (= (% i 15) 0)\n" +
-                "           (fizzbuzz (+ i 1) (cons \"FizzBuzz\" s))\n" +
-                "           (if (= (% i 3) 0)\n" +
-                "               (fizzbuzz (+ i 1) (cons \"Fizz\" s))\n" +
-                "               (if (= (% i 5) 0)\n" +
-                "                   (fizzbuzz (+ i 1) (cons \"Buzz\" s))\n" +
-                "                   (fizzbuzz (+ i 1) (cons \n" +
-                "                                           (if (< i 10) \n" +
-                "                                                   (cons (+ 48 i) (quote ())) \n" +
-                "                                                   (cons (+ 48 (/ i 10)) (cons (+ 48 (% i 10)) (quote ())))) \n" +
-                "                                           s))\n" +
-                "                   )\n" +
-                "               )\n" +
-                "           )\n" +
-                "       s))))\n" +
-                "      (fizzbuzz 1 (quote ())))";
+        String fizzbuzz = Bench.FIZZBUZZ;
         Pair<String> s = compile(fizzbuzz, java).list(UnChurchification::stringify);
+        Expr shared = compile(fizzbuzz, dag);
+        for (CodeGen<F, ?> gen : javaBackends) {
+            assert s.equals(compile(fizzbuzz, gen).list(UnChurchification::stringify));
+            assert s.equals(compile(shared, gen, null).list(UnChurchification::stringify));
+        }
+        assert s.equals(optimized(fizzbuzz).list(UnChurchification::stringify));
         List<String> lst = s.list();
         Collections.reverse(lst);
         System.err.println(lst);
@@ -216,13 +279,785 @@ public class Test {
     }
 
     void size() {
-        String size = "(letrec ((size (λ (s) (if (null? s) 0 (+ 1 (size (cdr s))))))) (size %s))";
+        String size = Bench.SIZE;
 
         assertEquals(3, format(size, cons(3, 4, 5)));
         assertEquals(2, format(size, cons(3, 4)));
         assertEquals(0, format(size, cons()));
     }
 
+    // 非尾递归 10^4 层, 宿主栈会溢出, cek 的续延在堆上
+    void deep() {
+        String deep = "(letrec ((size (λ (s) (if (null? s) 0 (+ 1 (size (cdr s))))))) (size ((^ 10 4) (λ (l) (cons 0 l)) (quote ()))))";
+        assert 10000 == compile(deep, cek).nat();
+        // if 的条件是 jet 算出来的 #t/#f, 分支照样在机器里跑
+        String cond = "(letrec ((size (λ (s) (if (null? s) 0 (if (= (car s) 0) (+ 1 (size (cdr s))) 0))))) (size ((^ 10 N) (λ (l) (cons 0 l)) (quote ()))))";
+        assert 10000 == compile(cond.replace("N", "4"), cek).nat();
+        assert 100000 == compile(cond.replace("N", "5"), cek).nat();
+        // 参数不是 Num, 退回的丘齐编码也在机器里跑
+        String fallback = "(letrec ((size (λ (s) (if (null? s) 0 (+ (car s) (size (cdr s))))))) (size ((^ 10 4) (λ (l) (cons (λ (f) f) l)) (quote ()))))";
+        assert 10000 == compile(fallback, cek).nat();
+        // 编译期的 resolve 也不爆栈: 很长的字符串字面量, 很大的数字字面量
+        StringBuilder str = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            str.append((char) ('a' + i % 26));
+        }
+        assert str.toString().equals(compile("\"" + str + "\"", cek).string());
+        String range = "(letrec ((range (λ (n) (if (= n 0) (quote ()) (cons n (range (- n 1))))))) " +
+                "(letrec ((size (λ (s) (if (null? s) 0 (+ 1 (size (cdr s))))))) (size (range 10000))))";
+        assert 10000 == compile(range, cek).nat();
+        assert UnChurchification.Indexed.resolve(compile("20000"), false) instanceof UnChurchification.Indexed.Lam;
+    }
+
+    // 多线程并发驻留, 同名拿到同一个 Sym, 并发编译结果一致
+    void symbols() {
+        assert symOf("x") == symOf("x");
+        assert symOf("x") != symOf("y");
+
+        String fact = format(Bench.FACT, 5);
+        List<Callable<Object[]>> tasks = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            String name = "sym-" + (i % 4);
+            tasks.add(() -> new Object[] { symOf(name), compile(fact, javaIndexed).nat() });
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(32);
+        try {
+            for (Future<Object[]> f : pool.invokeAll(tasks)) {
+                Object[] r = f.get();
+                assert r[0] == symOf(r[0].toString());
+                assert (int) r[1] == 120;
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    void dag() {
+        // closed 子项 α 等价即共享
+        App app = (App) compile("((λ (a) a) (λ (b) b))", dag);
+        assert app.abs == app.arg;
+        // open 子项只有同名才共享
+        Abs abs = (Abs) compile("(λ (x) (λ (y) ((x y) (x y))))", dag);
+        App body = (App) ((Abs) abs.body).body;
+        assert body.abs == body.arg;
+        abs = (Abs) compile("(λ (x) ((λ (y) (x y)) (λ (z) (x z))))", dag);
+        app = (App) abs.body;
+        assert app.abs != app.arg;
+        // DAG 打印回源码语义不变
+        assertEquals("aaa", compile(compile("\"aaa\"", dag), scheme, null));
+        // 共享后 primitive 还是原来的节点, jets 照样认得出
+        assert compile(compile("(+ (- 5 1) (- 4 1))", dag), java, null) instanceof UnChurchification.Jets.Num;
+    }
+
+    // bootstrap 环境只构建一次, 冻结共享, 用户在子作用域上扩展
+    void boot() {
+        assert bootEnv().parent == bootEnv().parent;
+        assert bootEnv(java).parent == bootEnv(java).parent;
+        try {
+            bootEnv().parent.put(symOf("x"), symOf("x"));
+            assert false;
+        } catch (UnsupportedOperationException ignored) { }
+        Env<Expr> env = bootEnv();
+        env.put(symOf("three"), compile("3"));
+        assert 4 == compile("(+ three 1)", env, java, null).nat();
+        assert 4 == bootEnv(java).lookup(symOf(Names.SUM)).apply(compile("3", java)).apply(compile("1", java)).nat();
+        // 冻结保留定义的顺序
+        assert new ArrayList<>(bootEnv().parent.env.keySet()).equals(primitives().keySet().stream().map(Expr::symOf).collect(toList()));
+        // 临时的 visitor 不进缓存
+        int cached = Env.boot.size();
+        CodeGen<F, Env<F>> adhoc = new UnChurchification.Compiler(false);
+        assert bootEnv(adhoc).parent != bootEnv(adhoc).parent;
+        assert 4 == bootEnv(adhoc).lookup(symOf(Names.SUM)).apply(compile("3", java)).apply(compile("1", java)).nat();
+        assert Env.boot.size() == cached;
+        // 共享的 backend 自己登记
+        assert Env.cached(java) && Env.cached(javaLazy) && Env.cached(javaParallel) && !Env.cached(adhoc);
+        CodeGen<F, Env<F>> registered = Env.shared(new UnChurchification.Compiler(false));
+        assert bootEnv(registered).parent == bootEnv(registered).parent;
+        Env.boot.remove(registered);
+        Env.shared.remove(registered);
+    }
+
+    void parser() {
+        String src = "; 注释\n(+ 1 2) \"a b\"\n(λ (x) x) ; 行尾注释\nfoo";
+        Parser parser = new Parser(new StringReader(src));
+        assert "(+ 1 2)".equals(parser.next().toString());
+        assert "\"a b\"".equals(parser.next().toString());
+        assert "(λ (x) x)".equals(parser.next().toString());
+        assert "foo".equals(parser.next().toString());
+        assert !parser.hasNext();
+        assert new Parser(src).parse().toString().equals(new Parser(CharBuffer.wrap(src)).parse().toString());
+
+        // 嵌套很深也不爆栈
+        int depth = 100000;
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < depth; i++) deep.append('(');
+        deep.append('x');
+        for (int i = 0; i < depth; i++) deep.append(')');
+        Parser.Node n = new Parser(new StringReader(deep.toString())).next();
+        for (int i = 0; i < depth; i++) n = ((Tuple) n).els.get(0);
+        assert "x".equals(n.toString());
+
+        try {
+            Path file = Files.createTempFile("λ", ".ss");
+            try {
+                Files.write(file, ("\"Hello World!\"\n(letrec ((fact (λ (n) (if (= n 0) 1 (* n (fact (- n 1))))))) (fact 5))\n").getBytes(StandardCharsets.UTF_8));
+                Parser forms = Parser.parse(file);
+                assert "Hello World!".equals(compile(forms.next().toString(), java).string());
+                assert 120 == compile(forms.next().toString(), java).nat();
+                assert !forms.hasNext();
+            } finally {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        for (String bad : new String[] { "(a b", "a)", "\"abc", "\"a\nb\"" }) {
+            try {
+                new Parser(new StringReader(bad)).parse();
+                assert false;
+            } catch (RuntimeException ignored) { }
+        }
+    }
+
+    // 去糖的结果 (expand 之前)
+    void desugar() {
+        assertDesugar("((#t (λ (_) #f)) (λ (_) (λ (t) (λ (f) (f (λ (nothing) nothing))))))", "(and #t #f)");
+        assertDesugar("((#f (λ (_) #t)) (λ (_) #t))", "(or #f #t)");
+        assertDesugar("(((λ (a) (λ (b) ((+ a) b))) (λ (f) (λ (z) (f z)))) (λ (f) (λ (z) (f (f z)))))", "(let ((a 1) (b 2)) (+ a b))");
+        assertDesugar("((λ (_) (λ (f) (λ (z) (f z)))) nothing)", "(let () 1)");
+        assertDesugar("((λ (_) (λ (f) (λ (z) (f z)))) nothing)", "((λ () 1))");
+        assertDesugar("(λ (x) (λ (y) (λ (z) ((x y) z))))", "(λ (x y z) (x y z))");
+        assertDesugar("((λ (f) (f x)) (((λ (y) (λ (F) (F (λ (x) (((y y) F) x))))) (λ (y) (λ (F) (F (λ (x) (((y y) F) x)))))) (λ (f) (λ (n) n))))", "(letrec ((f (λ (n) n))) (f x))");
+    }
+
+    // 长字符串/list 字面量, 编译不爆栈, 相同字符共享同一个丘齐数
+    void literals() {
+        int n = 20000;
+        StringBuilder str = new StringBuilder("\""), lst = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            str.append((char) ('a' + i % 26));
+            lst.append("(cons ").append(i % 3).append(' ');
+        }
+        str.append('"');
+        lst.append("(quote ())");
+        for (int i = 0; i < n; i++) lst.append(')');
+
+        for (String src : new String[] { str.toString(), lst.toString() }) {
+            Expr e = compile(src);
+            Map<Expr, Expr> cars = new IdentityHashMap<>();
+            int len = 0;
+            while (e instanceof App) {
+                Expr car = ((App) ((App) e).abs).arg;
+                cars.put(car, car);
+                e = ((App) e).arg;
+                len++;
+            }
+            assert len == n;
+            assert cars.size() == (src.startsWith("\"") ? 26 : 3);
+        }
+        assertEquals("abc", "(cons 97 (cons 98 (cons 99 (quote ()))))");
+        assertEquals("", "\"\"");
+    }
+
+    void optimize() {
+        assert "(λ (f) (λ (z) (f (f (f (f (f (f (f z)))))))))".equals(compile(compile("(+ 3 4)", optimize), scheme, null));
+        assert "(λ (f) f)".equals(compile(compile("(if #t 1 2)", optimize), scheme, null));
+        // 捕获: 把含自由 y 的实参代入 (λ (y) ...) 里要改名
+        Expr e = compile("(λ (y) ((λ (x) (λ (y) (y x))) y))", new Env<>(null), optimize, null);
+        assert "(λ (y) (λ (y_1) (y_1 y)))".equals(compile(e, scheme, null));
+        // Ω 和 Y 不会无限展开
+        compile("((λ (f) (f f)) (λ (f) (f f)))", optimize);
+        compile("(/ 1 0)", optimize);
+        // 无用绑定的实参不是 value 就不能丢, call-by-value 下它可能不停机
+        Expr kept = compile("((λ (x) 1) ((λ (f) (f f)) (λ (f) (f f))))", optimize);
+        assert kept instanceof App && ((App) kept).arg instanceof App;
+        assert "(λ (f) f)".equals(compile(compile("((λ (x) 1) (λ (y) y))", optimize), scheme, null));
+        // fuel 用完就原样返回
+        Expr plus = compile("(+ 3 4)");
+        assert plus == new λ.Compiler.Optimizer(0, 0).optimize(plus);
+        // 显式栈, 很长的字符串字面量不爆栈
+        StringBuilder str = new StringBuilder("\"");
+        for (int i = 0; i < 20000; i++) {
+            str.append((char) ('a' + i % 26));
+        }
+        String lit = str.append('"').toString();
+        assert compile(lit, javaLazy).string().equals(compile(compile(lit, optimize), javaLazy, null).string());
+    }
+
+    void jets() {
+        // 求值前整个程序解析一遍, 认出来的节点不再往下找, 结果在旁边的表里
+        App sum = (App) compile("(+ 3 4)");
+        Map<Expr, F> resolved = UnChurchification.Jets.resolve(sum);
+        App plus3 = (App) sum.abs;
+        assert resolved.size() == 3 && resolved.get(sum.arg).nat() == 4 && resolved.get(plus3.arg).nat() == 3;
+        assert resolved.get(plus3.abs) == UnChurchification.Jets.of(plus3.abs) && !resolved.containsKey(sum) && !resolved.containsKey(plus3);
+
+        CodeGen<F, Env<F>> off = new UnChurchification.Compiler(false);
+        CodeGen<F, Void> indexedOff = new UnChurchification.Indexed(false);
+        for (String s : new String[] { "(+ 3 4)", "(* 6 7)", "(- 3 5)", "(- 9 4)", "(^ 2 10)", "(^ 3 0)", "(% 17 5)", "(/ 17 5)",
+                "(+ (λ (f) f) 2)", "(* (car (cons 3 (quote ()))) 4)" }) {
+            int expected = compile(s, off).nat();
+            assert expected == compile(s, java).nat();
+            assert expected == compile(s, indexedOff).nat();
+            assert expected == compile(s, javaIndexed).nat();
+        }
+        for (String s : new String[] { "(= 3 3)", "(!= 3 3)", "(<= 2 3)", "(>= 2 3)", "(< 3 3)", "(> 4 3)", "(zero? 0)", "(zero? 2)", "(= (λ (f) f) 1)" }) {
+            boolean expected = compile(s, off).bool();
+            assert expected == compile(s, java).bool();
+            assert expected == compile(s, javaIndexed).bool();
+        }
+        // 算出来的是 Num, 不是丘齐编码
+        assert compile("(+ 3 4)", java) instanceof UnChurchification.Jets.Num;
+        assert compile("(% 100 7)", javaIndexed) instanceof UnChurchification.Jets.Num;
+        // 当成丘齐数用时展开
+        assert 7 == compile("((+ 3 4) (λ (n) (+ n 1)) 0)", java).nat();
+    }
+
+    void lazy() {
+        String omega = "((λ (x) (x x)) (λ (x) (x x)))";
+        // 严格求值会爆栈, call-by-need 下没用到的参数不求值
+        assert 1 == compile(format("((λ (x) 1) %s)", omega), javaLazy).nat();
+        assert 1 == compile(format("(car (cons 1 %s))", omega), javaLazy).nat();
+        assert 3 == compile(format("(let ((x (+ 1 2)) (y %s)) x)", omega), javaLazy).nat();
+        // 结果和严格求值一致
+        for (String s : new String[] { "(+ 3 4)", "(* (car (cons 3 (quote ()))) 4)", "(let ((x (* 3 3))) (+ x x))",
+                "(letrec ((fact (λ (n) (if (= n 0) 1 (* n (fact (- n 1))))))) (fact 5))" }) {
+            assert compile(s, java).nat() == compile(s, javaLazy).nat();
+        }
+        assert compile("(= (+ 1 1) 2)", javaLazy).bool();
+
+        // 多线程同时 force 只求值一次
+        AtomicInteger evaluated = new AtomicInteger();
+        UnChurchification.Thunk thunk = new UnChurchification.Thunk(() -> {
+            evaluated.incrementAndGet();
+            return UnChurchification.Jets.Num.of(42);
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                futures.add(pool.submit(() -> thunk.nat()));
+            }
+            for (Future<Integer> f : futures) {
+                assert 42 == f.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+        assert evaluated.get() == 1;
+    }
+
+    void prelude() {
+        // 只绑定用到的, 顺序同 primitives()
+        assert "((λ (+) (λ (x) ((+ x) x))) (λ (n) (λ (m) (λ (f) (λ (z) ((m f) ((n f) z)))))))"
+                .equals(compileWithPrelude("(λ (x) (+ x x))", scheme));
+        // 同一个 primitive 用到多次时, 比展开到每个引用处小
+        for (String s : new String[] { "(λ (x) (= (- x x) (- (- x 1) (- 1 x))))", Bench.FIZZBUZZ }) {
+            for (CodeGen<String, Void> gen : Arrays.asList(scheme, json, js, py)) {
+                assert compileWithPrelude(s, gen).length() < compile(s, gen).length();
+            }
+        }
+        // 依赖按定义顺序绑定一次, % 里不再各自带一份 = - pred
+        String mod = compileWithPrelude("(λ (x) (% x 3))", scheme);
+        assert mod.startsWith("((λ (nothing) ((λ (#t) ((λ (#f) ((λ (zero?) ((λ (-) ((λ (=)");
+        assert mod.split("\\(λ \\(g\\)", -1).length == 2;
+        // 绑定的定义也登记在 jets 表里, jets 照样生效
+        assert compileWithPrelude("(+ 3 4)", java) instanceof UnChurchification.Jets.Num;
+        assert compileWithPrelude("(% 7 3)", java) instanceof UnChurchification.Jets.Num;
+        assertEquals("98", "(car (cdr (cdr " + Bench.FIZZBUZZ + ")))");
+        try {
+            compileWithPrelude("(+ x 1)", scheme);
+            assert false;
+        } catch (RuntimeException e) {
+            assert "x not found".equals(e.getMessage());
+        }
+
+        // 合法的名字原样, 其他的转义, 不会撞车
+        assert "fizzbuzz".equals(js.mangle("fizzbuzz"));
+        assert "on_cons".equals(py.mangle("on_cons"));
+        assert "___plus_".equals(js.mangle("+"));
+        assert "__zero_q_".equals(js.mangle("zero?"));
+        assert "___hash_t".equals(py.mangle("#t"));
+        assert "__not".equals(py.mangle("not"));
+        assert "not".equals(js.mangle("not"));
+        // 下划线开头的合法名字原样, 只有 __ 开头的要转义
+        assert "_".equals(js.mangle("_"));
+        assert "_1".equals(py.mangle("_1"));
+        assert "______x".equals(js.mangle("__x"));
+        assert "+".equals(scheme.mangle("+"));
+        assert 578 == compile("(if (= 1 1) 1 2)", js).length();
+        List<String> names = Arrays.asList("+", "_plus_", "__plus_", "___plus_", "a_", "a__", "_", "__", "___", "____",
+                "λ", "_u3bb_", "__u3bb_", "1", "_1", "__1", "<=", "lt_eq", "not", "_not", "__not");
+        assert names.stream().map(js::mangle).distinct().count() == names.size();
+    }
+
+    void printer() {
+        // 和原来递归拼字符串的输出一致
+        Expr e = compile("(λ (x) ((λ (y) (x y)) (x x)))");
+        assert "(λ (x) ((λ (y) (x y)) (x x)))".equals(compile(e, scheme, null));
+        assert "['λ', ['x'], [['λ', ['y'], ['x', 'y']], ['x', 'x']]]".equals(compile(e, json, null));
+        assert "(x => ((y => x(y)))(x(x)))".equals(compile(e, js, null));
+        assert "(lambda x: ((((lambda y: (((x)(y)))))(((x)(x))))))".equals(compile(e, py, null));
+
+        // 很深的项也不爆栈
+        Expr deep = λ.Compiler.churchNumeral(100_000);
+        String out = compile(deep, js, null);
+        assert out.startsWith("(f => (z => f(f(") && out.indexOf("f(z)))") == out.length() - 100_000 - 5;
+        assert out.length() == "(f => (z => ".length() + 100_000 * "f()".length() + "z))".length();
+
+        // 写到 Appendable 和文件, 内容一样
+        try {
+            StringBuilder buf = new StringBuilder();
+            scheme.print(deep, buf);
+            assert buf.toString().equals(compile(deep, scheme, null));
+            Path file = Files.createTempFile("λ", ".ss");
+            try {
+                scheme.print(deep, file);
+                assert buf.toString().equals(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            } finally {
+                Files.delete(file);
+            }
+        } catch (IOException e1) {
+            throw new UncheckedIOException(e1);
+        }
+    }
+
+    void minify() {
+        Expr e = compile("(λ (x) ((λ (y) (x y)) (λ (on_cons on_nil) (on_cons x))))");
+        assert "a=>(b=>a(b))(b=>c=>b(a))".equals(compile(e, jsMin, null));
+        assert "lambda a:(lambda b:a(b))(lambda b:lambda c:b(a))".equals(compile(e, pyMin, null));
+        // 函数位置上的调用不用括号
+        assert "a=>a(a)(a)".equals(compile(compile("(λ (x) ((x x) x))"), jsMin, null));
+        // 不和 free variable 撞名, free variable 照常 mangle
+        Expr open = λ.Compiler.compile1(Parser.parse("(λ (y) (a (+ y)))"));
+        assert "b=>a(___plus_(b))".equals(compile(open, jsMin, null));
+        // 跳过关键字, 进位
+        CodeGen.Minifier min = (CodeGen.Minifier) jsMin;
+        assert "dp".equals(min.nextName("dn", Collections.emptySet()));
+        assert "aa".equals(CodeGen.Minifier.succ("Z"));
+        assert "ba".equals(CodeGen.Minifier.succ("a9"));
+        assert "aaa".equals(CodeGen.Minifier.succ("Z9"));
+        assert "is".equals(min.nextName("ir", Collections.emptySet()));
+        assert "it".equals(((CodeGen.Minifier) pyMin).nextName("ir", Collections.emptySet()));
+        // 比原来的输出小
+        for (String s : new String[] { format(Bench.FACT, 5), Bench.FIZZBUZZ }) {
+            assert compile(s, jsMin).length() < compile(s, js).length();
+            assert compile(s, pyMin).length() < compile(s, py).length();
+            assert compileWithPrelude(s, jsMin).length() < compileWithPrelude(s, js).length();
+        }
+        // 很深的项也不爆栈
+        assert compile(λ.Compiler.churchNumeral(100_000), jsMin, null).startsWith("a=>b=>a(a(");
+    }
+
+    void decoders() {
+        // 10^5 个元素, 解码和 Pair 的操作都不爆栈
+        int n = 100_000;
+        F lst = compile("(quote ())", java);
+        for (int i = n - 1; i >= 0; i--) {
+            F car = UnChurchification.Jets.Num.of(i % 300), cdr = lst;
+            lst = onCons -> onNil -> onCons.apply(car).apply(cdr);
+        }
+        int[] nats = lst.nats();
+        assert nats.length == n && nats[0] == 0 && nats[n - 1] == (n - 1) % 300;
+        Pair<Integer> pair = lst.list(UnChurchification::natify);
+        assert pair.size() == n;
+        assert pair.list().equals(UnChurchification.listOf(UnChurchification::natify, lst));
+        assert pair.equals(lst.list(UnChurchification::natify));
+        assert pair.hashCode() == lst.list(UnChurchification::natify).hashCode();
+        assert pair.toString().startsWith("(0 (1 (2 ") && pair.toString().endsWith(" nil" + String.join("", Collections.nCopies(n, ")")));
+
+        F chars = compile("(quote ())", java);
+        StringBuilder str = new StringBuilder();
+        for (int i = n - 1; i >= 0; i--) {
+            F car = UnChurchification.Jets.Num.of('a' + i % 26), cdr = chars;
+            chars = onCons -> onNil -> onCons.apply(car).apply(cdr);
+            str.append((char) ('a' + (n - 1 - i) % 26));
+        }
+        assert str.toString().equals(chars.string());
+
+        // 大的丘齐数
+        assert 1_000_000 == compile("(* 1000 1000)", new UnChurchification.Compiler(false)).nat();
+
+        // 和原来递归的版本一致
+        Pair<Integer> p = Pair.of(1, 2, 3);
+        assert "(1 (2 (3 nil)))".equals(p.toString());
+        assert "(1 null)".equals(new Pair<>(1, null).toString());
+        assert p.hashCode() == Objects.hash(1, Pair.of(2, 3));
+        assert Pair.of().hashCode() == Objects.hash(null, null);
+        assert !p.equals(Pair.of(1, 2)) && !Pair.of(1, 2).equals(p) && p.equals(Pair.of(1, 2, 3));
+        assert "\uFFFD".equals(compile("(cons 200 (quote ()))", java).string());
+    }
+
+    void streams() {
+        String s = "(cons 1 (cons 2 (cons 3 (quote ()))))";
+        for (CodeGen<F, ?> gen : javaBackends) {
+            assert Arrays.asList(1, 2, 3).equals(compile(s, gen).stream(UnChurchification::natify).collect(toList()));
+        }
+        Iterator<Integer> it = compile(s, java).iterator(UnChurchification::natify);
+        assert it.hasNext() && it.hasNext() && it.next() == 1 && it.next() == 2 && it.next() == 3 && !it.hasNext();
+        try {
+            it.next();
+            assert false;
+        } catch (NoSuchElementException ignored) { }
+        assert !compile("(quote ())", java).iterator(UnChurchification::natify).hasNext();
+
+        // call-by-need 下的无限 list, 只取前面几个
+        F nats = compile("(letrec ((from (λ (n) (cons n (from (+ n 1)))))) (from 0))", javaLazy);
+        assert Arrays.asList(0, 1, 2, 3, 4).equals(nats.stream(UnChurchification::natify).limit(5).collect(toList()));
+        assert 1000 == nats.stream(UnChurchification::natify).skip(1000).findFirst().orElse(-1);
+        // 元素用到才解码
+        F strs = compile("(letrec ((f (λ (n) (cons (if (= n 3) ((λ (x) (x x)) (λ (x) (x x))) \"ok\") (f (+ n 1)))))) (f 0))", javaLazy);
+        assert 3 == strs.stream(F::string).limit(3).count();
+    }
+
+    void metrics() {
+        String fact = format(Bench.FACT, 5);
+        Expr e = compile(fact);
+        UnChurchification.Metrics church = new UnChurchification.Metrics();
+        assert 120 == UnChurchification.Metrics.evaluate(e, false, false, F::nat, church);
+        assert church.applications > 0 && church.closures > 0 && church.frames > 0;
+        assert church.lookups > 0 && church.hops >= church.lookups && church.peakDepth > 0 && church.depth == 0;
+
+        // jets 之后规约少得多
+        UnChurchification.Metrics jets = new UnChurchification.Metrics();
+        assert 120 == UnChurchification.Metrics.evaluate(e, true, false, F::nat, jets);
+        assert jets.frames * 10 < church.frames;
+
+        // lazy 下用不到的参数不求值
+        UnChurchification.Metrics strict = new UnChurchification.Metrics(), lazy = new UnChurchification.Metrics();
+        Expr unused = compile("((λ (x) 1) (* 100 100))");
+        UnChurchification.Metrics.evaluate(unused, false, false, F::nat, strict);
+        UnChurchification.Metrics.evaluate(unused, false, true, F::nat, lazy);
+        assert lazy.frames < strict.frames;
+
+        // snapshot 不随之后的求值变化
+        UnChurchification.Metrics snapshot = church.snapshot();
+        UnChurchification.Metrics.evaluate(e, false, false, F::nat, church);
+        assert snapshot.frames * 2 == church.frames && snapshot.toString().startsWith("applications=");
+
+        // JFR 事件是反射加载的 listener, 没有这个类就不回调
+        assert UnChurchification.Metrics.listener("xiao.NoSuchListener") == null;
+        assert UnChurchification.Metrics.LISTENER == null || UnChurchification.Metrics.LISTENER.getClass().getName().equals("xiao.JfrEvaluation");
+    }
+
+    // 结果按输入顺序, 和逐个编译一致, 出错的程序不影响其他
+    void batch() {
+        List<String> codes = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            codes.add(i == 7 ? "(+ x 1)" : i == 9 ? "(+ 1" : format("(letrec ((fact (λ (n) (if (= n 0) 1 (* n (fact (- n 1))))))) (fact %d))", i % 6));
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<Compiled<F>> fs = compileAll(codes, javaIndexed, pool);
+            List<Compiled<String>> ss = compileAll(codes, js, pool);
+            assert fs.size() == codes.size() && ss.size() == codes.size();
+            int[] fact = { 1, 1, 2, 6, 24, 120 };
+            for (int i = 0; i < codes.size(); i++) {
+                assert fs.get(i).code == codes.get(i);
+                if (i == 7 || i == 9) {
+                    assert !fs.get(i).ok() && !ss.get(i).ok();
+                    continue;
+                }
+                assert fs.get(i).get().nat() == fact[i % 6];
+                assert ss.get(i).get().equals(compile(codes.get(i), js));
+            }
+            assert "x not found".equals(fs.get(7).error.getMessage());
+            try {
+                fs.get(9).get();
+                assert false;
+            } catch (RuntimeException e) {
+                assert e.getCause() == fs.get(9).error;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assert compileAll(Collections.emptyList(), js).isEmpty();
+    }
+
+    void cache() {
+        String fact = format(Bench.FACT, 5);
+        Cache cache = new Cache(3);
+        String out = cache.compile(fact, js);
+        assert out.equals(compile(fact, js));
+        assert out == cache.compile(fact, js);
+        // 换 target 复用展开好的 Expr
+        assert cache.compile(fact, py).equals(compile(fact, py));
+        assert cache.compile(fact, javaIndexed).nat() == 120;
+        Cache.Stats stats = cache.stats();
+        assert stats.misses == 4 && stats.hits == 3 && stats.evictions == 1 && cache.size() == 3;
+        // LRU: fact/js 最久没用, 已经淘汰
+        assert cache.compile(fact, js) != out;
+
+        // 出错不缓存, 每次都抛
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.compile("(+ x 1)", js);
+                assert false;
+            } catch (RuntimeException e) {
+                assert "x not found".equals(e.getMessage());
+            }
+        }
+
+        // 并发 miss 只编译一次
+        Cache shared = new Cache(16);
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Callable<String>> tasks = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            tasks.add(() -> { start.await(); return shared.compile(Bench.FIZZBUZZ, scheme); });
+        }
+        try {
+            List<Future<String>> fs = new ArrayList<>();
+            for (Callable<String> task : tasks) fs.add(pool.submit(task));
+            start.countDown();
+            for (Future<String> f : fs) assert f.get() == fs.get(0).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+        assert shared.stats().misses == 2 && shared.stats().hits + shared.stats().waits == 14 + 1;
+
+        // 磁盘层: 重启后读回, 指纹变了的旧目录被 purge
+        try {
+            Path dir = Files.createTempDirectory("λ-cache");
+            Cache first = new Cache(16, dir);
+            String min = first.compile(fact, jsMin);
+            assert first.stats().writes == 1;
+            Cache second = new Cache(16, dir);
+            assert min.equals(second.compile(fact, jsMin)) && second.stats().reads == 1 && second.stats().writes == 0;
+            // 不是字符串的 target 不落盘
+            assert second.compile(fact, javaIndexed).nat() == 120 && second.stats().writes == 0;
+            assert Files.isRegularFile(dir.resolve(Cache.FINGERPRINT).resolve(Cache.MARKER));
+            Path old = Files.createDirectories(dir.resolve("0123456789abcdef"));
+            Files.write(old.resolve("x.js"), new byte[] { 1 });
+            Files.write(old.resolve(Cache.MARKER), new byte[0]);
+            // 不是缓存建的目录不动: 名字不像指纹, 或者没有标记
+            Path foreign = Files.createDirectories(dir.resolve("fedcba9876543210"));
+            Path other = Files.createDirectories(dir.resolve("other"));
+            Files.write(other.resolve(Cache.MARKER), new byte[0]);
+            assert second.purge() == 1 && second.purge() == 0;
+            assert !Files.exists(old) && Files.isDirectory(foreign) && Files.isDirectory(other);
+            assert min.equals(new Cache(16, dir).compile(fact, jsMin));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        assert Cache.FINGERPRINT.length() == 16 && !Cache.hash("1").equals(Cache.hash("2"));
+    }
+
+    void binary() {
+        String fact = format(Bench.FACT, 5);
+        for (String s : Arrays.asList(fact, "(λ (x) (λ (y) (λ (x) (y x))))", "((λ (f) (f f)) (λ (a) (λ (b) b)))", Bench.FIZZBUZZ)) {
+            Expr e = compile(s);
+            byte[] bytes = Binary.encode(e);
+            Expr back = Binary.decode(ByteBuffer.wrap(bytes));
+            // 名字换了, α 等价: 再编码一次字节相同
+            assert Arrays.equals(bytes, Binary.encode(back));
+        }
+        assert Binary.encode(compile(fact)).length * 8 < compile(fact, scheme).length();
+        assert Binary.encode(compile(Bench.FIZZBUZZ)).length * 50 < compile(Bench.FIZZBUZZ, scheme).length();
+        // 读写都不递归, 10^5 层的 cons 链不爆栈
+        char[] cs = new char[100000];
+        Arrays.fill(cs, 'a');
+        Expr deep = compile("\"" + new String(cs) + "\"");
+        byte[] deepBytes = Binary.encode(deep);
+        assert Arrays.equals(deepBytes, Binary.encode(Binary.decode(ByteBuffer.wrap(deepBytes))));
+        Binary.code(ByteBuffer.wrap(deepBytes), true);
+        Expr fizzbuzz = Binary.decode(ByteBuffer.wrap(Binary.encode(compile(Bench.FIZZBUZZ))));
+        for (CodeGen<F, ?> gen : javaBackends) {
+            assert 120 == compile(Binary.decode(ByteBuffer.wrap(Binary.encode(compile(fact)))), gen, null).nat();
+            assert "98".equals(compile(fizzbuzz, gen, null).list(UnChurchification::stringify).cdr.cdr.car);
+        }
+        // 直接读成 Indexed.Code, jets 开关都对
+        for (boolean jets : new boolean[] { true, false }) {
+            assert 120 == Binary.code(ByteBuffer.wrap(Binary.encode(compile(fact))), jets).eval(null, null).nat();
+            assert 0 == Binary.code(ByteBuffer.wrap(Binary.encode(compile("0"))), jets).eval(null, null).nat();
+        }
+        // primitive 读回来是 bootstrap 环境里的同一个 Expr, jets 仍然生效
+        assert compile(Binary.decode(ByteBuffer.wrap(Binary.encode(compile("(+ 3 4)")))), java, null) instanceof UnChurchification.Jets.Num;
+        // 共享的 closed 子项只写一次
+        Expr id = compile("(λ (a) (λ (b) (b a)))");
+        Expr twice = new App(new App(symOf("x"), id), id);
+        byte[] once = Binary.encode(id), both = Binary.encode(new Abs(symOf("x"), twice));
+        assert both.length < once.length * 2;
+        Abs abs = (Abs) Binary.decode(ByteBuffer.wrap(both));
+        assert ((App) ((App) abs.body).abs).arg == ((App) abs.body).arg;
+
+        try {
+            Binary.encode(compile("(λ (x) y)", new Env<>(null)));
+            assert false;
+        } catch (RuntimeException e) {
+            assert "y not found".equals(e.getMessage());
+        }
+        byte[] stale = Binary.encode(compile(fact));
+        stale[5] ^= 1;
+        try {
+            Binary.decode(ByteBuffer.wrap(stale));
+            assert false;
+        } catch (RuntimeException e) {
+            assert e.getMessage().startsWith("λ binary built against other primitives");
+        }
+
+        // mmap 读文件
+        try {
+            Path file = Files.createTempFile("λ", ".xlb");
+            Binary.write(compile(fact), file);
+            assert Files.size(file) == Binary.encode(compile(fact)).length;
+            assert 120 == Binary.load(file).nat();
+            assert 120 == compile(Binary.read(file), cek, null).nat();
+            Files.delete(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void optimal() {
+        String fact = format(Bench.FACT, 5);
+        for (String s : Arrays.asList(fact, "(^ 2 10)", "(^ 3 4)", "(/ 20 7)", "(% 20 7)", "(- 10 3)", "(* 0 5)")) {
+            Expr e = compile(s);
+            assert compile(e, java, null).nat() == compile(e, optimal, null).nat();
+        }
+        assert compile(compile("(= 3 3)"), optimal, null).bool();
+        assert !compile(compile("(< 5 3)"), optimal, null).bool();
+        assert Arrays.equals(new int[] { 1, 2, 3 }, compile(compile("(cons 1 (cons 2 (cons 3 (quote ()))))"), optimal, null).nats());
+        assert "hi".equals(compile(compile("\"hi\""), optimal, null).string());
+
+        // 读回 normal form, 和直接写的丘齐数 α 等价
+        assert Arrays.equals(Binary.encode(λ.Compiler.churchNumeral(3)), Binary.encode(UnChurchification.Optimal.normalize(compile("(+ 1 2)"))));
+        assert Arrays.equals(Binary.encode(λ.Compiler.churchNumeral(120)), Binary.encode(UnChurchification.Optimal.normalize(compile(fact))));
+        assert "(λ (x1) x1)".equals(UnChurchification.Optimal.normalize(compile("((λ (f) (f f)) (λ (a) (λ (b) b)))", new Env<>(null))).toString());
+
+        // 图上的值可以反复用, 也可以和别的后端的值互相 apply
+        F n = compile(compile("(* 3 4)"), optimal, null);
+        assert n.nat() == 12 && n.nat() == 12;
+        F succ = compile(compile("(λ (n) (+ n 1))"), optimal, null);
+        assert succ.apply(compile("41", java)).nat() == 42;
+        assert succ.apply(compile(compile("41"), optimal, null)).nat() == 42;
+        assert compile("(λ (n) (+ n 1))", java).apply(n).nat() == 13;
+        // 很长的链不爆栈
+        assert compile(λ.Compiler.churchNumeral(100_000), optimal, null).nat() == 100_000;
+
+        // 环境求值 (不开 jets) 要展开 2^n 次调用, 最优规约共享之后 β 次数随 n 线性增长, n = 24 也是毫秒级
+        CodeGen<F, Env<F>> env = new UnChurchification.Compiler(false);
+        for (int i : new int[] { 0, 3, 10 }) {
+            Expr e = compile(format("(if (zero? (^ 2 %d)) 1 0)", i));
+            assert compile(e, env, null).nat() == compile(e, optimal, null).nat();
+        }
+        assert compile(compile("(if (zero? (^ 2 24)) 1 0)"), optimal, null).nat() == 0;
+        // 连着的 croissant/bracket 并成一串, 两串相遇按一个个交互的结果算
+        assert compile(compile("(((^ 2 12) (λ (x) x)) 0)"), optimal, null).nat() == 0;
+        assert "(λ (x1) (λ (x2) (x1 (x1 (x1 (x1 x2))))))".equals(UnChurchification.Optimal.normalize(compile("((λ (t) (t t)) (λ (f) (λ (x) (f (f x)))))", new Env<>(null))).toString());
+
+        try {
+            compile(compile("(λ (x) y)", new Env<>(null)), optimal, null);
+            assert false;
+        } catch (RuntimeException e) {
+            assert "y not found".equals(e.getMessage());
+        }
+    }
+
+    void parallel() {
+        String fact = "(letrec ((fact (λ (n) (if (= n 0) 1 (* n (fact (- n 1))))))) %s)";
+        Expr list = compile(format(fact, "(cons (fact 5) (cons (fact 6) (cons (fact 4) (cons (fact 7) (quote ())))))"));
+        Expr fizzbuzz = compile(Bench.FIZZBUZZ);
+
+        // 开销估计: letrec 函数的调用够大, jet 和 λ 不算
+        Map<Expr, Integer> costs = UnChurchification.Parallel.costs(list, true);
+        App outer = (App) ((Abs) ((App) list).abs).body;
+        assert costs.get(outer.abs) >= UnChurchification.Parallel.THRESHOLD && costs.get(outer.arg) >= UnChurchification.Parallel.THRESHOLD;
+        Expr sum = compile("(+ 1 2)");
+        assert UnChurchification.Parallel.costs(sum, true).get(sum) < UnChurchification.Parallel.CALL;
+        assert UnChurchification.Parallel.costs(sum, false).get(sum) > UnChurchification.Parallel.CALL;
+
+        // 不同线程数结果相同, 和顺序求值相同
+        for (int n : new int[] { 1, 2, 4 }) {
+            ForkJoinPool pool = new ForkJoinPool(n);
+            try {
+                for (boolean jets : new boolean[] { true, false }) {
+                    CodeGen<F, Env<F>> gen = new UnChurchification.Parallel(jets, pool, UnChurchification.Parallel.THRESHOLD);
+                    assert Arrays.equals(new int[] { 120, 720, 24, 5040 }, compile(list, gen, null).nats());
+                    assert compile(fizzbuzz, gen, null).list(UnChurchification::stringify).equals(compile(fizzbuzz, java, null).list(UnChurchification::stringify));
+                }
+                // 阈值 0: 每个 App 都 fork
+                CodeGen<F, Env<F>> eager = new UnChurchification.Parallel(true, pool, 0);
+                assert Arrays.equals(new int[] { 120, 720, 24, 5040 }, compile(list, eager, null).nats());
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        // fork 出去的参数出错, 在 join 处抛出原来的异常
+        Expr big = compile(format(fact, "(fact 6)"));
+        Sym v = symOf("v");
+        Expr bad = new App(new Abs(v, new App(symOf("nope"), v)), big);
+        Expr e = new App(new App(compile("(λ (a) (λ (b) a))"), big), bad);
+        RuntimeException expected = null;
+        try {
+            compile(e, java, null);
+        } catch (RuntimeException ex) {
+            expected = ex;
+        }
+        assert expected != null && "nope not found".equals(expected.getMessage());
+        try {
+            compile(e, new UnChurchification.Parallel(true, ForkJoinPool.commonPool(), 0), null);
+            assert false;
+        } catch (RuntimeException ex) {
+            assert ex.getClass() == expected.getClass() && expected.getMessage().equals(ex.getMessage());
+        }
+    }
+
+    void flat() {
+        // 闭包只捕获用到的外层变量
+        F one = compile("1", java), two = compile("2", java);
+        F k = compile("(λ (a) (λ (b) (λ (c) a)))", javaFlat).apply(one).apply(two);
+        assert k instanceof UnChurchification.Flat.Closure;
+        F[] captured = ((UnChurchification.Flat.Closure) k).captured;
+        assert captured.length == 1 && captured[0] == one;
+        assert k.apply(two) == one;
+        // closed 的 λ 不捕获, 只有一个闭包
+        F konst = compile("(λ (a) (λ (b) (b b)))", javaFlat);
+        assert konst.apply(one) == konst.apply(two);
+        assert ((UnChurchification.Flat.Closure) konst.apply(one)).captured.length == 0;
+        // 遮蔽: 里层的 a 是最近的绑定
+        assert compile("(λ (a) (λ (a) a))", javaFlat).apply(one).apply(two) == two;
+
+        String range = "(letrec ((range (λ (i acc) (if (= i 0) acc (range (- i 1) (cons i acc)))))) (range 1000 (quote ())))";
+        int[] nats = compile(range, javaFlat).nats();
+        assert nats.length == 1000 && nats[0] == 1 && nats[999] == 1000;
+        assert compile(compile(range), new UnChurchification.Flat(false), null).nats().length == 1000;
+        // 两遍都是显式栈: 很长的字符串字面量, 不认 jet 的大数字都不爆栈
+        StringBuilder str = new StringBuilder("\"");
+        for (int i = 0; i < 20000; i++) {
+            str.append((char) ('a' + i % 26));
+        }
+        String lit = str.append('"').toString();
+        assert UnChurchification.Flat.convert(compile(lit), true) instanceof UnChurchification.Flat.Ap;
+        assert UnChurchification.Flat.convert(compile(lit), false) instanceof UnChurchification.Flat.Ap;
+        assert UnChurchification.Flat.convert(compile("20000"), false) instanceof UnChurchification.Flat.Lam;
+        // 共享的 open λ 在不同的位置按各自的绑定捕获
+        Abs outer = (Abs) compile("(λ (x) (λ (z) (+ x z)))");
+        Abs inc = (Abs) outer.body;
+        Sym y = symOf("y");
+        Expr twice = new Abs(outer.param, new App(inc, new App(new Abs(y, new App(inc, y)), compile("2"))));
+        assert 4 == compile(twice, javaFlat, null).apply(one).nat();
+
+        try {
+            compile(compile("(λ (x) y)", new Env<>(null)), javaFlat, null);
+            assert false;
+        } catch (RuntimeException e) {
+            assert "y not found".equals(e.getMessage());
+        }
+    }
+
+    static void assertDesugar(String expected, String s) {
+        assert expected.equals(λ.Compiler.compile1(Parser.parse(s)).toString());
+    }
+
     void tmp() {
         Env<Expr> env = bootEnv();
         env.put(symOf("x"), compile("#t"));